@@ -0,0 +1,79 @@
+package kis.acoustics;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One block of partitioned convolution, and one block of a channel through all bands.
+ * @author naoki
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvolutionBenchmark {
+    @Param({"64", "256", "1024"})
+    int block;
+
+    @Param({"625", "5000"})
+    int kernel;
+
+    PartitionedConvolver.State state;
+    Auralizer auralizer;
+    float[] in, out, audio;
+
+    @Setup
+    public void setup() {
+        var rand = new Random(1234);
+        var k = new double[kernel];
+        for (int i = 0; i < kernel; ++i) {
+            k[i] = rand.nextDouble() * Math.exp(-i * 5. / kernel);
+        }
+        state = new PartitionedConvolver(k, block).newState();
+        in = new float[block];
+        out = new float[block];
+        for (int i = 0; i < block; ++i) {
+            in[i] = (float) (rand.nextGaussian() * 3000);
+        }
+
+        // echo bands as LoadWav makes them, kernel taps at 125Hz
+        var echo = new double[6][];
+        for (int f = 0; f < echo.length; ++f) {
+            echo[f] = new double[kernel >> f];
+            for (int i = 0; i < echo[f].length; ++i) {
+                echo[f][i] = k[i << f];
+            }
+        }
+        auralizer = new Auralizer(echo, 1);
+        audio = new float[auralizer.block];
+        for (int i = 0; i < audio.length; ++i) {
+            audio[i] = (float) (rand.nextGaussian() * 3000);
+        }
+    }
+
+    @Benchmark
+    public float[] partition() {
+        state.process(in, 0, out, 0);
+        return out;
+    }
+
+    /** the block size of the pipeline is fixed, so this only depends on the kernel */
+    @Benchmark
+    public float[] bands() {
+        auralizer.process(0, audio, audio);
+        return audio;
+    }
+}
@@ -0,0 +1,80 @@
+package kis.acoustics;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import kis.acoustics.GeoAcoustics.Material;
+import kis.acoustics.GeoAcoustics.Polygon;
+import kis.acoustics.GeoAcoustics.Ray;
+import kis.acoustics.GeoAcoustics.Rectangle;
+import kis.acoustics.GeoAcoustics.Sphere;
+import kis.acoustics.GeoAcoustics.Surface;
+import kis.acoustics.GeoAcoustics.Vec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ray against one primitive of the object model, for rays from the source of the shoebox.
+ * @author naoki
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectBenchmark {
+    @Param({"256", "4096", "65536"})
+    int rays;
+
+    Ray[] ray;
+    Surface[] robj = new Surface[1];
+    Polygon polygon;
+    Rectangle rectangle;
+    Sphere sphere;
+
+    @Setup
+    public void setup() {
+        var rand = new Random(1234);
+        var source = new Vec(3, 2, 3);
+        ray = new Ray[rays];
+        for (int i = 0; i < rays; ++i) {
+            var dir = new Vec(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian()).normalize();
+            ray[i] = new Ray(source, dir);
+        }
+        rectangle = (Rectangle) GeoAcoustics.surfaces.get(0);
+        polygon = rectangle.p1;
+        sphere = new Sphere(.5, new Vec(8, 2, 3), Material.CONCRETE);
+    }
+
+    private double sum(Surface s) {
+        double sum = 0;
+        for (var r : ray) {
+            sum += s.intersect(r, robj);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double polygon() {
+        return sum(polygon);
+    }
+
+    @Benchmark
+    public double rectangle() {
+        return sum(rectangle);
+    }
+
+    @Benchmark
+    public double sphere() {
+        return sum(sphere);
+    }
+}
@@ -0,0 +1,69 @@
+package kis.acoustics;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import kis.acoustics.GeoAcoustics.Vec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full trace of the shoebox on one thread.
+ * The seed is fixed, so every invocation follows the same rays.
+ * @author naoki
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int samples;
+
+    final Vec source = new Vec(3, 2, 3);
+    RayTracer tracer;
+    Receivers receivers;
+    RayTracer.Worker worker;
+    EchoHistogram hist;
+
+    @Setup
+    public void setup() {
+        tracer = new RayTracer(new PackedScene(GeoAcoustics.surfaces));
+        receivers = Receivers.of(.1, new Vec(8, 2, 3));
+        worker = tracer.worker(5);
+        hist = new EchoHistogram(5);
+    }
+
+    @Benchmark
+    public long trace() {
+        hist.count = 0;
+        worker.trace(source, receivers, samples, new SplittableRandom(42), (r, d, e, o, w) -> hist.add(d, e, o, w));
+        return hist.count;
+    }
+
+    @Benchmark
+    public double closest() {
+        var q = tracer.scene.query();
+        var rand = new Random(42);
+        double sum = 0;
+        for (int i = 0; i < samples; ++i) {
+            double x = rand.nextGaussian(), y = rand.nextGaussian(), z = rand.nextGaussian();
+            double len = Math.sqrt(x * x + y * y + z * z);
+            if (q.closest(source.x, source.y, source.z, x / len, y / len, z / len)) {
+                sum += q.t;
+            }
+        }
+        return sum;
+    }
+}
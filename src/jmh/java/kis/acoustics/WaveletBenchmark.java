@@ -0,0 +1,65 @@
+package kis.acoustics;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Haar transform and inverse over one channel.
+ * @author naoki
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaveletBenchmark {
+    @Param({"4096", "65536", "1048576"})
+    int length;
+
+    @Param({"7", "12"})
+    int levels;
+
+    float[] signal, coefficients, buffer;
+    Wavelet wavelet;
+
+    @Setup
+    public void setup() {
+        var rand = new Random(1234);
+        signal = new float[length];
+        for (int i = 0; i < length; ++i) {
+            signal[i] = (float) (rand.nextGaussian() * 3000);
+        }
+        wavelet = new Wavelet(levels);
+        coefficients = signal.clone();
+        wavelet.forward(coefficients, length);
+        buffer = new float[length];
+    }
+
+    // in place, so the input is copied first every time
+
+    @Benchmark
+    public float[] forward() {
+        System.arraycopy(signal, 0, buffer, 0, length);
+        wavelet.forward(buffer, length);
+        return buffer;
+    }
+
+    @Benchmark
+    public float[] inverse() {
+        System.arraycopy(coefficients, 0, buffer, 0, length);
+        wavelet.inverse(buffer, length);
+        return buffer;
+    }
+}
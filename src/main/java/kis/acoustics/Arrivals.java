@@ -0,0 +1,62 @@
+package kis.acoustics;
+
+import java.util.Arrays;
+import static kis.acoustics.PackedScene.BANDS;
+
+/**
+ * Arrivals at one receiver kept one by one, for an impulse response finer than the histogram bins.
+ * An arrival is its time and the energy of each band in primitive arrays,
+ * which are sorted by time with {@link #sort()} before they are rendered, see {@link ImpulseSynthesizer}.
+ * The energy is the same as {@link EchoHistogram} adds, the sum over the rays.
+ * @author naoki
+ */
+public class Arrivals {
+    // seconds from the emission
+    private float[] time = new float[1024];
+    // energy of the bands, BANDS for an arrival
+    private float[] energy = new float[1024 * BANDS];
+    int size;
+    // rays traced from the source
+    long rays;
+
+    /** adds an arrival that stands for weight rays, like {@link EchoHistogram#add(double, double[], int, double)} */
+    void add(double distance, double[] amp, int offset, double weight) {
+        if (size == time.length) {
+            time = Arrays.copyOf(time, size * 2);
+            energy = Arrays.copyOf(energy, size * 2 * BANDS);
+        }
+        time[size] = (float) (distance / EchoHistogram.SOUND_SPEED);
+        for (int b = 0; b < BANDS; ++b) {
+            energy[size * BANDS + b] = (float) (amp[offset + b] * amp[offset + b] * weight);
+        }
+        ++size;
+    }
+
+    float time(int i) {
+        return time[i];
+    }
+
+    float energy(int i, int band) {
+        return energy[i * BANDS + band];
+    }
+
+    /** sorts the arrivals by time */
+    Arrivals sort() {
+        // positive floats sort as their bits, so the time and the index are sorted as one long
+        var keys = new long[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = (long) Float.floatToIntBits(time[i]) << 32 | i;
+        }
+        Arrays.sort(keys);
+        var t = new float[Math.max(1, size)];
+        var e = new float[Math.max(1, size) * BANDS];
+        for (int i = 0; i < size; ++i) {
+            int from = (int) keys[i];
+            t[i] = time[from];
+            System.arraycopy(energy, from * BANDS, e, i * BANDS, BANDS);
+        }
+        time = t;
+        energy = e;
+        return this;
+    }
+}
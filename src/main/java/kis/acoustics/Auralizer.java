@@ -0,0 +1,192 @@
+package kis.acoustics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Applies the echo to audio block by block in the Haar wavelet domain.
+ * <p>
+ * The block is a multiple of 2^levels, so the wavelet of a block does not depend
+ * on its neighbours and only the convolvers keep state between blocks.
+ * Every band phase gets the same number of samples per block,
+ * which is the block size of the convolvers.
+ * The wavelet is computed in place in the block, and the bands are convolved in parallel.
+ * @author naoki
+ */
+public class Auralizer {
+    /** samples per block of each convolved band phase */
+    static final int PHASE_BLOCK = 256;
+
+    final int channels;
+    /** first band which is convolved, higher bands pass through */
+    final int start;
+    final Wavelet wavelet;
+    /** frames per block */
+    final int block;
+    /** ratio of the echoed signal in 0 .. 1 */
+    double wet = 1;
+    private final PartitionedConvolver[] convolvers;
+    private final Channel[] states;
+    // time of the stages over all channels
+    private final LongAdder blocks = new LongAdder();
+    private final LongAdder forwardNanos = new LongAdder();
+    private final LongAdder convolveNanos = new LongAdder();
+    private final LongAdder inverseNanos = new LongAdder();
+
+    @Name("kis.acoustics.AuralizeBlock")
+    @Label("Auralize Block")
+    @Category("Acoustics")
+    static class BlockEvent extends Event {
+        @Label("Channel")
+        int channel;
+        @Label("Forward")
+        @Timespan
+        long forward;
+        @Label("Convolve")
+        @Timespan
+        long convolve;
+        @Label("Inverse")
+        @Timespan
+        long inverse;
+    }
+
+    /** @param echo amplitude of the echo per band, echo[i] has a tap every 2^i bins */
+    Auralizer(double[][] echo, int channels) {
+        this(echo, channels, 44100);
+    }
+
+    /**
+     * @param echo amplitude of the echo per band of {@link EchoHistogram#HZ}, echo[i] has a tap every 2^i bins
+     * @param sampleRate decides the wavelet band the highest echo band is applied to
+     */
+    Auralizer(double[][] echo, int channels, float sampleRate) {
+        this.channels = channels;
+        // detail band k is sampleRate / 2^(k + 1) .. sampleRate / 2^k
+        var top = EchoHistogram.HZ[echo.length - 1];
+        this.start = Math.max(1, (int) Math.round(Math.log(sampleRate * Math.sqrt(2) / top) / Math.log(2)) - 1);
+        // the approximation takes the lowest echo band
+        this.wavelet = new Wavelet(start + echo.length - 2);
+        this.block = PHASE_BLOCK << wavelet.bands();
+        convolvers = new PartitionedConvolver[echo.length];
+        for (int fi = 0; fi < echo.length; ++fi) {
+            convolvers[fi] = new PartitionedConvolver(
+                    Arrays.stream(echo[fi]).map(e -> e / 25).toArray(),
+                    wavelet.length(band(fi), block) >> fi);
+        }
+        states = new Channel[channels];
+        for (int ch = 0; ch < channels; ++ch) {
+            states[ch] = new Channel();
+        }
+    }
+
+    /** wavelet band of the echo band */
+    private int band(int fi) {
+        return wavelet.bands() - fi;
+    }
+
+    /** Wavelet buffer, convolver states and work space for one channel. */
+    private class Channel {
+        final float[] buffer = new float[block];
+        final float[][] delayed = new float[wavelet.bands() + 1][];
+        final PartitionedConvolver.State[][] conv = new PartitionedConvolver.State[wavelet.bands() + 1][];
+        final float[][] phaseIn = new float[wavelet.bands() + 1][];
+        final float[][] phaseOut = new float[wavelet.bands() + 1][];
+
+        Channel() {
+            for (int f = start; f <= wavelet.bands(); ++f) {
+                var fi = wavelet.bands() - f;
+                delayed[f] = new float[wavelet.length(f, block)];
+                conv[f] = new PartitionedConvolver.State[1 << fi];
+                for (int r = 0; r < conv[f].length; ++r) {
+                    conv[f][r] = convolvers[fi].newState();
+                }
+                phaseIn[f] = new float[convolvers[fi].block];
+                phaseOut[f] = new float[convolvers[fi].block];
+            }
+        }
+    }
+
+    /**
+     * processes one block of a channel, in and out have {@link #block} frames
+     * and may be the same array.
+     */
+    void process(int ch, float[] in, float[] out) {
+        var st = states[ch];
+        var buf = st.buffer;
+        long t0 = System.nanoTime();
+        // wavelet transform
+        System.arraycopy(in, 0, buf, 0, block);
+        wavelet.forward(buf, block);
+        long t1 = System.nanoTime();
+
+        // delay, the bands only read the buffer
+        IntStream.rangeClosed(start, wavelet.bands()).parallel().forEach(f -> delay(st, f));
+        for (int f = start; f <= wavelet.bands(); ++f) {
+            var dst = st.delayed[f];
+            int off = wavelet.offset(f), stride = wavelet.stride(f);
+            for (int i = 0; i < dst.length; ++i) {
+                buf[off + i * stride] = dst[i];
+            }
+        }
+        long t2 = System.nanoTime();
+
+        // wavelet invert transform
+        wavelet.inverse(buf, block);
+        System.arraycopy(buf, 0, out, 0, block);
+        long t3 = System.nanoTime();
+
+        blocks.increment();
+        forwardNanos.add(t1 - t0);
+        convolveNanos.add(t2 - t1);
+        inverseNanos.add(t3 - t2);
+        var event = new BlockEvent();
+        if (event.isEnabled()) {
+            event.channel = ch;
+            event.forward = t1 - t0;
+            event.convolve = t2 - t1;
+            event.inverse = t3 - t2;
+            event.commit();
+        }
+    }
+
+    /** convolves the band f of the buffer into delayed[f] */
+    private void delay(Channel st, int f) {
+        var buf = st.buffer;
+        var dst = st.delayed[f];
+        var phaseIn = st.phaseIn[f];
+        var phaseOut = st.phaseOut[f];
+        int off = wavelet.offset(f), stride = wavelet.stride(f);
+        var w = st.conv[f].length;
+        int n = dst.length / w;
+        // echo[fi] has a tap every w samples of this band,
+        // so each of the w phases is convolved with the dense echo
+        for (int r = 0; r < w; ++r) {
+            for (int i = 0; i < n; ++i) {
+                phaseIn[i] = buf[off + (i * w + r) * stride];
+            }
+            st.conv[f][r].process(phaseIn, 0, phaseOut, 0);
+            for (int i = 0; i < n; ++i) {
+                float d = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, phaseOut[i]));
+                dst[i * w + r] = (float) (phaseIn[i] * (1 - wet) + d * wet);
+            }
+        }
+    }
+
+    /** seconds spent in each stage over all channels */
+    Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("blocks", blocks.sum());
+        map.put("forwardSeconds", forwardNanos.sum() / 1e9);
+        map.put("convolveSeconds", convolveNanos.sum() / 1e9);
+        map.put("inverseSeconds", inverseNanos.sum() / 1e9);
+        return map;
+    }
+}
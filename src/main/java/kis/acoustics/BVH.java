@@ -0,0 +1,258 @@
+package kis.acoustics;
+
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy over the boxes of primitives, built with the binned surface area heuristic.
+ * Nodes are stored flat in depth-first order; the left child of an inner node is the next node.
+ * @author naoki
+ */
+public class BVH {
+    private static final int BINS = 16;
+    static final int LEAF_SIZE = 4;
+    private static final double TRAVERSAL_COST = 1;
+    private static final double INTERSECT_COST = 1;
+    // boxes of axis aligned walls are flat, give them some thickness
+    private static final double PAD = 1e-6;
+
+    // primitive index for each leaf slot
+    final int[] order;
+    // per node: minx, miny, minz, maxx, maxy, maxz
+    double[] bounds;
+    // leaf: first primitive / inner: right child
+    int[] offset;
+    // leaf: primitive count / inner: 0
+    int[] count;
+    int[] axis;
+    int nodeCount;
+    /** edges from the root to the deepest leaf, the SAH doesn't bound it */
+    int depth;
+
+    private final double[] primMin, primMax, centroid;
+
+    /**
+     * @param boxes minx, miny, minz, maxx, maxy, maxz for each primitive
+     */
+    BVH(double[] boxes) {
+        int n = boxes.length / 6;
+        primMin = new double[n * 3];
+        primMax = new double[n * 3];
+        centroid = new double[n * 3];
+        for (int i = 0; i < n; ++i) {
+            for (int a = 0; a < 3; ++a) {
+                primMin[i * 3 + a] = boxes[i * 6 + a] - PAD;
+                primMax[i * 3 + a] = boxes[i * 6 + 3 + a] + PAD;
+                centroid[i * 3 + a] = (primMin[i * 3 + a] + primMax[i * 3 + a]) / 2;
+            }
+        }
+        int capacity = Math.max(1, n * 2 - 1);
+        bounds = new double[capacity * 6];
+        offset = new int[capacity];
+        count = new int[capacity];
+        axis = new int[capacity];
+
+        order = new int[n];
+        Arrays.setAll(order, i -> i);
+        build(order, 0, n);
+        depth = depth();
+    }
+
+    /** tree which was built before, read from a compiled scene */
+    BVH(double[] bounds, int[] offset, int[] count, int[] axis, int[] order) {
+        this.bounds = bounds;
+        this.offset = offset;
+        this.count = count;
+        this.axis = axis;
+        this.order = order;
+        this.nodeCount = offset.length;
+        primMin = primMax = centroid = null;
+        depth = depth();
+    }
+
+    private int depth() {
+        // parents come before their children in depth-first order
+        var level = new int[nodeCount];
+        int max = 0;
+        for (int node = 0; node < nodeCount; ++node) {
+            max = Math.max(max, level[node]);
+            // an empty tree is a leaf without primitives, an inner node has its right child after it
+            if (count[node] == 0 && offset[node] > node) {
+                level[node + 1] = level[offset[node]] = level[node] + 1;
+            }
+        }
+        return max;
+    }
+
+    /** entries a traversal stack needs, a pending right child for each level and the node popped */
+    int stackSize() {
+        return depth + 1;
+    }
+
+    private int newNode(int[] index, int from, int to) {
+        int node = nodeCount++;
+        var b = bounds;
+        int o = node * 6;
+        b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+        b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; ++i) {
+            int p = index[i] * 3;
+            for (int a = 0; a < 3; ++a) {
+                b[o + a] = Math.min(b[o + a], primMin[p + a]);
+                b[o + 3 + a] = Math.max(b[o + 3 + a], primMax[p + a]);
+            }
+        }
+        return node;
+    }
+
+    private void makeLeaf(int node, int from, int to) {
+        offset[node] = from;
+        count[node] = to - from;
+    }
+
+    private int build(int[] index, int from, int to) {
+        int node = newNode(index, from, to);
+        int n = to - from;
+        if (n <= LEAF_SIZE) {
+            makeLeaf(node, from, to);
+            return node;
+        }
+
+        double[] cmin = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] cmax = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = from; i < to; ++i) {
+            for (int a = 0; a < 3; ++a) {
+                cmin[a] = Math.min(cmin[a], centroid[index[i] * 3 + a]);
+                cmax[a] = Math.max(cmax[a], centroid[index[i] * 3 + a]);
+            }
+        }
+
+        var binCount = new int[BINS];
+        var binBounds = new double[BINS * 6];
+        var rightArea = new double[BINS];
+        int bestAxis = -1, bestSplit = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < 3; ++a) {
+            double extent = cmax[a] - cmin[a];
+            if (extent <= 0) {
+                continue;
+            }
+            Arrays.fill(binCount, 0);
+            for (int k = 0; k < BINS; ++k) {
+                resetBox(binBounds, k * 6);
+            }
+            for (int i = from; i < to; ++i) {
+                int k = bin(centroid[index[i] * 3 + a], cmin[a], extent);
+                binCount[k]++;
+                growBox(binBounds, k * 6, index[i] * 3);
+            }
+            // sweep from the right to get the area of each right side
+            var box = new double[6];
+            resetBox(box, 0);
+            int rightCount = 0;
+            var rightCounts = new int[BINS];
+            for (int k = BINS - 1; k > 0; --k) {
+                mergeBox(box, binBounds, k * 6);
+                rightCount += binCount[k];
+                rightCounts[k] = rightCount;
+                rightArea[k] = area(box);
+            }
+            resetBox(box, 0);
+            int leftCount = 0;
+            for (int k = 0; k < BINS - 1; ++k) {
+                mergeBox(box, binBounds, k * 6);
+                leftCount += binCount[k];
+                if (leftCount == 0 || rightCounts[k + 1] == 0) {
+                    continue;
+                }
+                double cost = area(box) * leftCount + rightArea[k + 1] * rightCounts[k + 1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = a;
+                    bestSplit = k;
+                }
+            }
+        }
+
+        double leafCost = INTERSECT_COST * n;
+        double splitCost = TRAVERSAL_COST + INTERSECT_COST * bestCost / area(bounds, node * 6);
+        if (bestAxis < 0 || splitCost >= leafCost) {
+            makeLeaf(node, from, to);
+            return node;
+        }
+
+        // partition by the chosen bin
+        double extent = cmax[bestAxis] - cmin[bestAxis];
+        int mid = from;
+        for (int i = from; i < to; ++i) {
+            if (bin(centroid[index[i] * 3 + bestAxis], cmin[bestAxis], extent) <= bestSplit) {
+                int t = index[i];
+                index[i] = index[mid];
+                index[mid++] = t;
+            }
+        }
+
+        axis[node] = bestAxis;
+        build(index, from, mid);
+        offset[node] = build(index, mid, to);
+        count[node] = 0;
+        return node;
+    }
+
+    private static int bin(double c, double min, double extent) {
+        return Math.min(BINS - 1, (int) ((c - min) / extent * BINS));
+    }
+
+    private static void resetBox(double[] b, int o) {
+        b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+        b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+    }
+
+    private void growBox(double[] b, int o, int p) {
+        for (int a = 0; a < 3; ++a) {
+            b[o + a] = Math.min(b[o + a], primMin[p + a]);
+            b[o + 3 + a] = Math.max(b[o + 3 + a], primMax[p + a]);
+        }
+    }
+
+    private static void mergeBox(double[] b, double[] src, int o) {
+        for (int a = 0; a < 3; ++a) {
+            b[a] = Math.min(b[a], src[o + a]);
+            b[3 + a] = Math.max(b[3 + a], src[o + 3 + a]);
+        }
+    }
+
+    private static double area(double[] b) {
+        return area(b, 0);
+    }
+
+    private static double area(double[] b, int o) {
+        double dx = b[o + 3] - b[o];
+        double dy = b[o + 4] - b[o + 1];
+        double dz = b[o + 5] - b[o + 2];
+        if (dx < 0 || dy < 0 || dz < 0) {
+            return 0;
+        }
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    /** slab test of the ray against the box of the node, limited to [0, best] */
+    boolean hitBox(int node, double ox, double oy, double oz,
+            double ix, double iy, double iz, double best) {
+        int b = node * 6;
+        double tmin = 0, tmax = best;
+        // comparisons are written so that NaN (0 * inf) leaves the interval untouched
+        double t0 = (bounds[b] - ox) * ix, t1 = (bounds[b + 3] - ox) * ix;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tmin) tmin = t0;
+        if (t1 < tmax) tmax = t1;
+        t0 = (bounds[b + 1] - oy) * iy; t1 = (bounds[b + 4] - oy) * iy;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tmin) tmin = t0;
+        if (t1 < tmax) tmax = t1;
+        t0 = (bounds[b + 2] - oz) * iz; t1 = (bounds[b + 5] - oz) * iz;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tmin) tmin = t0;
+        if (t1 < tmax) tmax = t1;
+        return tmin <= tmax;
+    }
+}
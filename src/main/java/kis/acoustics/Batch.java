@@ -0,0 +1,529 @@
+package kis.acoustics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import kis.acoustics.GeoAcoustics.Material;
+import kis.acoustics.GeoAcoustics.Vec;
+import lombok.Value;
+
+/**
+ * Runs the simulations of a job file without any window.
+ * <pre>
+ * {
+ *   "output": "out",
+ *   "threads": 8,
+ *   "defaults": {"samples": 500000, "seconds": 5, "imageSourceOrder": 3},
+ *   "jobs": [
+ *     {"name": "front", "source": [3, 2, 3], "receiver": [8, 2, 3]},
+ *     {"name": "hall", "scene": "hall.obj", "materials": "hall.json",
+ *      "sources": [[3, 2, 3], [5, 2, 3]], "receivers": [[8, 2, 3], [8, 2, 6]],
+ *      "variants": {"bare": {}, "curtain": {"WALL_CLOTH": "CURTAIN_PLEAT"}}}
+ *   ]
+ * }
+ * </pre>
+ * A job entry with sources, receivers or variants is expanded to all the combinations.
+ * A variant replaces materials by name with a preset name or six absorptions.
+ * Every key of defaults can be overridden in a job entry. Paths are relative to the job file.
+ * With {@code "tolerance"}, rays are traced in rounds until the echo converges,
+ * see {@link RayTracer#simulate(Vec, Receivers, int, double, double, int, long, long)}.
+ * With {@code "seed"}, the echo is the same on every run and any thread count.
+ * With {@code "reweight": true}, the variants of a job are not traced one by one,
+ * the paths of the scene without variants are recorded once and re-weighted with the materials of each variant,
+ * see {@link PathCache}.
+ * With {@code "checkpoint"}, a pass saves the rays traced so far to {@code <output>/<name>.checkpoint}
+ * every that many seconds, and a run after a crash resumes from it, see {@link Checkpoint}.
+ * With {@code "cache": "dir"} in the file, echoes are kept in the directory by the hash of the scene and settings,
+ * up to {@code "cacheMegabytes"}, and jobs found there are not traced again, see {@link EchoCache}.
+ * With {@code "ir": 48000}, the arrivals are kept one by one and each job also writes {@code <output>/<name>.wav},
+ * the impulse response at that sample rate, see {@link ImpulseSynthesizer}.
+ * <p>
+ * Jobs with the same scene, source and settings are traced in one pass with all their receivers.
+ * The passes run on one pool, so the cores are kept busy across jobs.
+ * Each job writes {@code <output>/<name>.echo}, and the counters of the tracing
+ * are written to {@code <output>/stats.json} at the end, see {@link TraceStats}.
+ * <p>
+ * A large run can be split into shards, which trace parts of the rays of every pass in separate processes:
+ * <pre>
+ * Batch jobs.json --processes 4           runs 4 shards in local processes and merges them
+ * Batch jobs.json --shard 2/4 --seed 42   traces shard 2 of 4, on any machine sharing the output
+ * Batch jobs.json --merge 4               merges the 4 shards into the echo files
+ * </pre>
+ * Shards take whole blocks of rays with the same seed, so jobs need a seed, from the file or {@code --seed},
+ * and the merged echo is exactly the same as the one of a single process.
+ * A shard writes {@code <output>/<name>.<shard>-of-<shards>.part} for each job, see {@link PartialEcho},
+ * so a failed shard can be traced again alone. Tolerance, reweight, checkpoint and ir can't be sharded.
+ * @author naoki
+ */
+public class Batch {
+    static final Map<String, Object> DEFAULTS = Map.ofEntries(
+            Map.entry("samples", 500_000),
+            Map.entry("seconds", 5),
+            Map.entry("imageSourceOrder", -1),
+            Map.entry("radius", .1),
+            Map.entry("flip", false),
+            Map.entry("float", true),
+            Map.entry("deflate", false),
+            // adaptive when tolerance > 0, then samples is the limit of rays
+            Map.entry("tolerance", 0),
+            Map.entry("range", 30),
+            Map.entry("round", 20_000),
+            Map.entry("maxSeconds", 0),
+            Map.entry("threshold", .01),
+            Map.entry("scattering", .2),
+            Map.entry("splitRatio", 0),
+            Map.entry("diffuseRain", true),
+            Map.entry("reweight", false),
+            // seconds between the checkpoints, 0 for none
+            Map.entry("checkpoint", 0),
+            // sample rate of the impulse response WAV, 0 for none
+            Map.entry("ir", 0));
+    // keys that don't change how a pass is traced
+    private static final List<String> JOB_KEYS = List.of("name", "receiver");
+
+    /** One simulation, which writes one impulse response. */
+    @Value
+    static class Job {
+        String name;
+        Map<String, Object> params;
+        Vec source;
+        Vec receiver;
+        Map<String, Object> variant;
+    }
+
+    private final Path base;
+    private final Path output;
+    private final Map<List<Object>, PackedScene> scenes = new HashMap<>();
+    private final Map<List<Object>, RayTracer> tracers = new HashMap<>();
+    // shard traced by this process, shards is 0 when not sharded
+    int shard;
+    int shards;
+    // null for no cache
+    EchoCache cache;
+
+    Batch(Path base, Path output) {
+        this.base = base;
+        this.output = output;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 1 || args.length % 2 == 0) {
+            System.err.println("usage: Batch <jobs.json> [--threads n] [--seed s]"
+                    + " [--processes n | --shard k/n | --merge n]");
+            System.exit(1);
+        }
+        var jobFile = Path.of(args[0]).toAbsolutePath();
+        Map<String, Object> file = new ObjectMapper().readValue(jobFile.toFile(), Map.class);
+        var base = jobFile.getParent();
+        var batch = new Batch(base, base.resolve((String) file.getOrDefault("output", ".")));
+        int threads = ((Number) file.getOrDefault("threads", Runtime.getRuntime().availableProcessors())).intValue();
+        if (file.get("cache") != null) {
+            long bytes = ((Number) file.getOrDefault("cacheMegabytes", 1024)).longValue() << 20;
+            batch.cache = new EchoCache(base.resolve((String) file.get("cache")), bytes,
+                    Math.min(bytes, Runtime.getRuntime().maxMemory() / 8));
+        }
+        int processes = 0, merge = 0;
+        Long seed = null;
+        for (int i = 1; i < args.length; i += 2) {
+            var value = args[i + 1];
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--processes":
+                    processes = Integer.parseInt(value);
+                    break;
+                case "--shard":
+                    var kn = value.split("/");
+                    batch.shard = Integer.parseInt(kn[0]);
+                    batch.shards = Integer.parseInt(kn[1]);
+                    if (batch.shard < 0 || batch.shard >= batch.shards) {
+                        throw new IllegalArgumentException("shard should be k/n with 0 <= k < n: " + value);
+                    }
+                    break;
+                case "--merge":
+                    merge = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (processes > 0) {
+            // every shard should use the same seed
+            seed = seed != null ? seed : new SplittableRandom().nextLong();
+            if (launch(jobFile, processes, Math.max(1, threads / processes), seed) != 0) {
+                System.exit(2);
+            }
+            merge = processes;
+        }
+        if (seed != null) {
+            ((Map<String, Object>) file.computeIfAbsent("defaults", __ -> new HashMap<>())).putIfAbsent("seed", seed);
+        }
+        var jobs = expand(file);
+        int failed = merge > 0 ? batch.merge(jobs, merge) : batch.run(jobs, threads);
+        System.exit(failed == 0 ? 0 : 2);
+    }
+
+    /**
+     * runs the shards of the job file in local processes and waits for them
+     * @return count of the failed shards
+     */
+    static int launch(Path jobFile, int processes, int threads, long seed) throws IOException, InterruptedException {
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var running = new ArrayList<Process>();
+        var commands = new ArrayList<List<String>>();
+        for (int k = 0; k < processes; ++k) {
+            var command = List.of(java, "-cp", System.getProperty("java.class.path"), Batch.class.getName(),
+                    jobFile.toString(), "--shard", k + "/" + processes,
+                    "--seed", String.valueOf(seed), "--threads", String.valueOf(threads));
+            commands.add(command);
+            running.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        int failed = 0;
+        for (int k = 0; k < processes; ++k) {
+            int code = running.get(k).waitFor();
+            if (code != 0) {
+                ++failed;
+                System.err.printf("shard %d failed with %d, run it again with:%n%s%n",
+                        k, code, String.join(" ", commands.get(k)));
+            }
+        }
+        return failed;
+    }
+
+    /** jobs of the file, sweeps are expanded */
+    static List<Job> expand(Map<String, Object> file) {
+        var defaults = new HashMap<>(DEFAULTS);
+        defaults.putAll((Map<String, Object>) file.getOrDefault("defaults", Map.of()));
+        var jobs = new ArrayList<Job>();
+        var names = new HashMap<String, Integer>();
+        for (var entry : (List<Map<String, Object>>) file.getOrDefault("jobs", List.of())) {
+            var params = new HashMap<>(defaults);
+            params.putAll(entry);
+            var name = (String) params.getOrDefault("name", "job" + jobs.size());
+            var sources = vecs(params, "source", "sources");
+            var receivers = vecs(params, "receiver", "receivers");
+            Map<String, Map<String, Object>> variants =
+                    (Map<String, Map<String, Object>>) params.getOrDefault("variants", Map.of("", Map.of()));
+            for (int s = 0; s < sources.size(); ++s) {
+                for (int r = 0; r < receivers.size(); ++r) {
+                    for (var variant : variants.entrySet()) {
+                        var jobName = name
+                                + (sources.size() > 1 ? "-s" + s : "")
+                                + (receivers.size() > 1 ? "-r" + r : "")
+                                + (variant.getKey().isEmpty() ? "" : "-" + variant.getKey());
+                        if (names.put(jobName, jobs.size()) != null) {
+                            throw new IllegalArgumentException("duplicate job name: " + jobName);
+                        }
+                        jobs.add(new Job(jobName, params, sources.get(s), receivers.get(r), variant.getValue()));
+                    }
+                }
+            }
+        }
+        return jobs;
+    }
+
+    private static List<Vec> vecs(Map<String, Object> params, String single, String multi) {
+        var list = new ArrayList<Vec>();
+        if (params.containsKey(single)) {
+            list.add(vec(params.get(single)));
+        }
+        for (var v : (List<Object>) params.getOrDefault(multi, List.of())) {
+            list.add(vec(v));
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("job " + params.get("name") + " has no " + single);
+        }
+        return list;
+    }
+
+    private static Vec vec(Object o) {
+        if (!(o instanceof List) || ((List<?>) o).size() != 3) {
+            throw new IllegalArgumentException("position should be [x, y, z]: " + o);
+        }
+        var l = (List<Number>) o;
+        return new Vec(l.get(0).doubleValue(), l.get(1).doubleValue(), l.get(2).doubleValue());
+    }
+
+    private static int integer(Map<String, Object> params, String key) {
+        return ((Number) params.get(key)).intValue();
+    }
+
+    private static double number(Map<String, Object> params, String key) {
+        return ((Number) params.get(key)).doubleValue();
+    }
+
+    /** key of the pass the job is traced in */
+    private static List<Object> passKey(Job job) {
+        var params = new HashMap<>(job.params);
+        JOB_KEYS.forEach(params::remove);
+        params.remove("receivers");
+        params.remove("sources");
+        params.remove("variants");
+        // re-weighted variants share the traced paths
+        // Vec is compared by identity, the coordinates are compared by value
+        return List.of(params, reweight(job) ? Map.of() : job.variant,
+                List.of(job.source.x, job.source.y, job.source.z));
+    }
+
+    private static boolean reweight(Job job) {
+        return Boolean.TRUE.equals(job.params.get("reweight"));
+    }
+
+    /** @return count of the failed jobs */
+    int run(List<Job> jobs, int threads) throws Exception {
+        // scenes are loaded before the passes, they are shared by the passes
+        for (var job : jobs) {
+            tracer(job, job.variant);
+            if (reweight(job)) {
+                tracer(job, Map.of());
+            }
+        }
+        Map<List<Object>, List<Job>> passes = jobs.stream()
+                .collect(Collectors.groupingBy(Batch::passKey, LinkedHashMap::new, Collectors.toList()));
+        Files.createDirectories(output);
+        System.out.printf("%d jobs in %d passes on %d threads%n", jobs.size(), passes.size(), threads);
+
+        var failed = new AtomicInteger();
+        var start = System.currentTimeMillis();
+        var pool = new ForkJoinPool(threads);
+        try {
+            // simulate() runs its parallel stream in this pool, so passes share the workers
+            pool.submit(() -> passes.values().parallelStream().forEach(pass -> {
+                try {
+                    runPass(pass);
+                } catch (Exception ex) {
+                    failed.addAndGet(pass.size());
+                    System.err.println("failed: "
+                            + pass.stream().map(Job::getName).collect(Collectors.joining(", ")));
+                    ex.printStackTrace();
+                }
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.;
+        System.out.printf("done %d jobs, %d failed, %.1fs%n", jobs.size(), failed.get(), seconds);
+        Files.writeString(output.resolve(shards > 0 ? "stats." + shard + "-of-" + shards + ".json" : "stats.json"),
+                TraceStats.TOTAL.toJson(seconds));
+        return failed.get();
+    }
+
+    /**
+     * writes the echo files of the jobs from their shards
+     * @return count of the failed jobs
+     */
+    int merge(List<Job> jobs, int shards) throws IOException {
+        Files.createDirectories(output);
+        int failed = 0;
+        for (var job : jobs) {
+            try {
+                var parts = new PartialEcho[shards];
+                for (int k = 0; k < shards; ++k) {
+                    parts[k] = PartialEcho.read(output.resolve(partName(job, k, shards)));
+                }
+                var hist = PartialEcho.merge(parts);
+                if (hist.rays != integer(job.params, "samples")) {
+                    throw new IllegalArgumentException("shards have " + hist.rays + " rays instead of "
+                            + job.params.get("samples"));
+                }
+                var echo = tracer(job, job.variant).finish(new EchoHistogram[] {hist},
+                        job.source, Receivers.of(number(job.params, "radius"), job.receiver))[0];
+                EchoFile.write(output.resolve(job.name + ".echo"), echo, flags(job.params));
+                if (cache != null) {
+                    cache.put(cacheKey(job), echo);
+                }
+            } catch (IOException | RuntimeException ex) {
+                ++failed;
+                System.err.println("failed: " + job.name);
+                ex.printStackTrace();
+            }
+        }
+        System.out.printf("merged %d jobs from %d shards, %d failed%n", jobs.size(), shards, failed);
+        return failed;
+    }
+
+    private static String partName(Job job, int shard, int shards) {
+        return job.name + "." + shard + "-of-" + shards + ".part";
+    }
+
+    private static int flags(Map<String, Object> p) {
+        return (Boolean.TRUE.equals(p.get("float")) ? EchoFile.FLOAT : 0)
+                | (Boolean.TRUE.equals(p.get("deflate")) ? EchoFile.DEFLATE : 0);
+    }
+
+    private void runPass(List<Job> pass) throws IOException {
+        if (cache != null && shards == 0) {
+            pass = cached(pass);
+            if (pass.isEmpty()) {
+                return;
+            }
+        }
+        var first = pass.get(0);
+        var p = first.params;
+        var start = System.currentTimeMillis();
+        // jobs of a re-weighted pass can share a receiver
+        var positions = new ArrayList<Vec>();
+        var index = new HashMap<List<Double>, Integer>();
+        var receiverOf = new int[pass.size()];
+        for (int i = 0; i < pass.size(); ++i) {
+            var r = pass.get(i).receiver;
+            receiverOf[i] = index.computeIfAbsent(List.of(r.x, r.y, r.z), __ -> {
+                positions.add(r);
+                return positions.size() - 1;
+            });
+        }
+        var receivers = Receivers.of(number(p, "radius"), positions.toArray(Vec[]::new));
+        double tolerance = number(p, "tolerance");
+        if (shards > 0) {
+            if (tolerance > 0 || reweight(first) || number(p, "checkpoint") > 0 || integer(p, "ir") > 0) {
+                throw new IllegalArgumentException(
+                        "sharded runs need samples without tolerance, reweight, checkpoint and ir");
+            }
+            if (p.get("seed") == null) {
+                throw new IllegalArgumentException("sharded runs need a seed");
+            }
+            long seed = ((Number) p.get("seed")).longValue();
+            int samples = integer(p, "samples");
+            long blocks = (samples + RayTracer.BLOCK - 1) / RayTracer.BLOCK;
+            var parts = tracer(first, first.variant).shard(first.source, receivers, seed, samples,
+                    blocks * shard / shards, blocks * (shard + 1) / shards, integer(p, "seconds"));
+            for (int i = 0; i < pass.size(); ++i) {
+                new PartialEcho(seed, shard, shards, parts[receiverOf[i]])
+                        .write(output.resolve(partName(pass.get(i), shard, shards)));
+            }
+            System.out.printf("%s shard %d of %d, %d rays %.1fs%n",
+                    pass.stream().map(Job::getName).collect(Collectors.joining(", ")),
+                    shard, shards, parts[0].rays, (System.currentTimeMillis() - start) / 1000.);
+            return;
+        }
+        var hists = new HashMap<Map<String, Object>, EchoHistogram[]>();
+        int irRate = integer(p, "ir");
+        // arrivals are recorded for the impulse responses
+        PathCache paths = irRate > 0 ? new PathCache() : null;
+        if (reweight(first)) {
+            if (tolerance > 0 || number(p, "checkpoint") > 0) {
+                throw new IllegalArgumentException("reweight needs samples without tolerance and checkpoint");
+            }
+            paths = new PathCache();
+            tracer(first, Map.of()).simulate(first.source, receivers,
+                    integer(p, "samples"), integer(p, "seconds"), paths);
+            for (var job : pass) {
+                if (!hists.containsKey(job.variant)) {
+                    hists.put(job.variant, tracer(job, job.variant).reweight(paths));
+                }
+            }
+        } else {
+            var tracer = tracer(first, first.variant);
+            if (tolerance > 0 && (number(p, "checkpoint") > 0 || irRate > 0)) {
+                throw new IllegalArgumentException("checkpoint and ir need samples instead of tolerance");
+            }
+            hists.put(first.variant, number(p, "checkpoint") > 0
+                    ? tracer.simulate(first.source, receivers, integer(p, "samples"), integer(p, "seconds"),
+                            new LiveEcho(), new Checkpoint(output.resolve(first.name + ".checkpoint"),
+                                    (long) (number(p, "checkpoint") * 1000)), paths)
+                    : tolerance > 0
+                    ? tracer.simulate(first.source, receivers, integer(p, "seconds"),
+                            tolerance, number(p, "range"), integer(p, "round"), integer(p, "samples"),
+                            number(p, "maxSeconds") > 0 ? (long) (number(p, "maxSeconds") * 1000) : Long.MAX_VALUE)
+                    : tracer.simulate(first.source, receivers,
+                            integer(p, "samples"), integer(p, "seconds"), paths));
+        }
+        int flags = flags(p);
+        for (int i = 0; i < pass.size(); ++i) {
+            var job = pass.get(i);
+            EchoFile.write(output.resolve(job.name + ".echo"), hists.get(job.variant)[receiverOf[i]], flags);
+            if (cache != null) {
+                cache.put(cacheKey(job), hists.get(job.variant)[receiverOf[i]]);
+            }
+        }
+        if (irRate > 0) {
+            var synth = new ImpulseSynthesizer(irRate);
+            var arrivals = new HashMap<Map<String, Object>, Arrivals[]>();
+            for (int i = 0; i < pass.size(); ++i) {
+                var job = pass.get(i);
+                if (!arrivals.containsKey(job.variant)) {
+                    arrivals.put(job.variant, tracer(job, job.variant).arrivals(paths));
+                }
+                var ir = synth.render(arrivals.get(job.variant)[receiverOf[i]], integer(p, "seconds"), 0);
+                ImpulseSynthesizer.write(output.resolve(job.name + ".wav"), new float[][] {ir}, irRate);
+            }
+        }
+        System.out.printf("%s %d rays %.1fs%n",
+                pass.stream().map(Job::getName).collect(Collectors.joining(", ")),
+                hists.get(first.variant)[0].rays, (System.currentTimeMillis() - start) / 1000.);
+    }
+
+    /** writes the echo files of the jobs of the pass found in the cache, and returns the others */
+    private List<Job> cached(List<Job> pass) throws IOException {
+        var missing = new ArrayList<Job>();
+        for (var job : pass) {
+            // the impulse response needs the arrivals
+            var echo = integer(job.params, "ir") > 0 ? null : cache.get(cacheKey(job));
+            if (echo == null) {
+                missing.add(job);
+            } else {
+                EchoFile.write(output.resolve(job.name + ".echo"), echo.echo, echo.count, flags(job.params));
+                System.out.printf("%s from cache%n", job.name);
+            }
+        }
+        return missing;
+    }
+
+    private String cacheKey(Job job) throws IOException {
+        var p = job.params;
+        return cache.key(tracer(job, job.variant), job.source, job.receiver, number(p, "radius"),
+                integer(p, "samples"), integer(p, "seconds"), number(p, "tolerance"), number(p, "range"),
+                integer(p, "round"), number(p, "maxSeconds"), reweight(job));
+    }
+
+    /** tracer for the scene and settings of the job with the variant, created once */
+    private RayTracer tracer(Job job, Map<String, Object> variant) throws IOException {
+        var p = job.params;
+        var sceneKey = List.of(String.valueOf(p.get("scene")), String.valueOf(p.get("materials")), p.get("flip"));
+        var key = List.of(sceneKey, variant, p.get("imageSourceOrder"),
+                p.get("threshold"), p.get("scattering"), p.get("splitRatio"),
+                p.get("diffuseRain"), String.valueOf(p.get("seed")));
+        var tracer = tracers.get(key);
+        if (tracer != null) {
+            return tracer;
+        }
+        var scene = scenes.get(sceneKey);
+        if (scene == null) {
+            var mesh = (String) p.get("scene");
+            var materials = (String) p.get("materials");
+            scene = mesh == null ? new PackedScene(GeoAcoustics.surfaces)
+                    : SceneLoader.load(base.resolve(mesh), materials == null ? null : base.resolve(materials),
+                            Boolean.TRUE.equals(p.get("flip")));
+            scenes.put(sceneKey, scene);
+        }
+        if (!variant.isEmpty()) {
+            var replace = new HashMap<String, Material>();
+            variant.forEach((name, def) -> replace.put(name, SceneLoader.material(name, def)));
+            scene = scene.withMaterials(replace);
+        }
+        tracer = new RayTracer(scene);
+        tracer.imageSourceOrder = integer(p, "imageSourceOrder");
+        tracer.threshold = number(p, "threshold");
+        tracer.scattering = number(p, "scattering");
+        tracer.splitRatio = number(p, "splitRatio");
+        tracer.diffuseRain = Boolean.TRUE.equals(p.get("diffuseRain"));
+        tracer.seed = p.get("seed") == null ? null : ((Number) p.get("seed")).longValue();
+        tracers.put(key, tracer);
+        return tracer;
+    }
+}
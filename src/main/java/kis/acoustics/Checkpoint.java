@@ -0,0 +1,125 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * File keeping the state of a long simulation, to resume it after it is stopped or crashed.
+ * Rays are traced in whole blocks from the first one, so the state is the seed, the count of the traced rays
+ * and the fixed point sums, and the resumed run gives exactly the echo of the uninterrupted one.
+ * The key is a SHA-256 of the scene, the settings and the seed, which the resumed run must have.
+ * <pre>
+ * header   int magic, int version, byte[32] key, long seed, long rays, int seconds, int receivers
+ * payload  long count and the sums of the bands for each receiver
+ * </pre>
+ * @author naoki
+ */
+public class Checkpoint {
+    static final int MAGIC = 0x4b434341; // "ACCK"
+    static final int VERSION = 2;
+    static final int KEY_BYTES = 32;
+    private static final int HEADER = 32 + KEY_BYTES;
+
+    final Path path;
+    /** millis between the saves */
+    final long interval;
+    private long saved = System.currentTimeMillis();
+
+    /** State of a saved simulation. */
+    static class State {
+        long seed;
+        long rays;
+        EchoHistogram[] hists;
+    }
+
+    Checkpoint(Path path, long interval) {
+        this.path = path;
+        this.interval = interval;
+    }
+
+    /** true when interval has passed since the last save */
+    boolean due() {
+        return System.currentTimeMillis() - saved >= interval;
+    }
+
+    /**
+     * state saved for the simulation of the key, or null if there is no checkpoint
+     * @param key key of the simulation with the seed
+     * @param seed seed the simulation is run with, null to take the one of the checkpoint
+     * @throws IllegalArgumentException the checkpoint is of another simulation
+     */
+    State load(LongFunction<byte[]> key, Long seed, int receivers, int seconds) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        var buf = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC) {
+            throw new IOException(path + " is not a checkpoint file");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported checkpoint version " + version + ": " + path);
+        }
+        var saved = new byte[KEY_BYTES];
+        buf.get(saved);
+        var state = new State();
+        state.seed = buf.getLong();
+        if (seed != null && seed != state.seed) {
+            throw new IllegalArgumentException(path + " is a checkpoint of the seed " + state.seed + ", not " + seed);
+        }
+        if (!Arrays.equals(saved, key.apply(state.seed))) {
+            // not overwritten, it may be hours of another run
+            throw new IllegalArgumentException(path + " is a checkpoint of another simulation");
+        }
+        state.rays = buf.getLong();
+        if (buf.getInt() != seconds || buf.getInt() != receivers) {
+            throw new IllegalArgumentException(path + " is a checkpoint of another simulation");
+        }
+        state.hists = EchoHistogram.of(receivers, seconds);
+        if (buf.remaining() != receivers * (8L + state.hists[0].sumBytes())) {
+            throw new IOException("broken checkpoint file: " + path);
+        }
+        for (var h : state.hists) {
+            h.count = buf.getLong();
+            h.getSums(buf);
+            h.rays = state.rays;
+        }
+        return state;
+    }
+
+    /** saves the histograms of rays traced rays, written aside and moved so that a crash keeps the last one */
+    void save(byte[] key, long seed, EchoHistogram[] hists) throws IOException {
+        var buf = ByteBuffer.allocate(Math.toIntExact(HEADER + hists.length * (8L + hists[0].sumBytes())))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).put(key).putLong(seed).putLong(hists[0].rays)
+                .putInt(hists[0].sum[0].length / EchoHistogram.HZ[0]).putInt(hists.length);
+        for (var h : hists) {
+            buf.putLong(h.count);
+            h.putSums(buf);
+        }
+        buf.flip();
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            // the old checkpoint is replaced only by a complete one
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        saved = System.currentTimeMillis();
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
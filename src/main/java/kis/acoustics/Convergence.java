@@ -0,0 +1,86 @@
+package kis.acoustics;
+
+import static kis.acoustics.PackedScene.BANDS;
+
+/**
+ * Running statistics of the echo energy over tracing rounds.
+ * Each round is an independent sample of the histogram, so the spread of the rounds
+ * gives the standard error of the sum in every band and time window.
+ * @author naoki
+ */
+public class Convergence {
+    /** bins of the lowest band in a window, 64ms */
+    static final int WINDOW = 8;
+    /** two sided 95% */
+    static final double Z = 1.96;
+
+    // [receiver][band][window]
+    private final double[][][] sum, sumSq;
+    int rounds;
+
+    Convergence(int receivers, int seconds) {
+        sum = new double[receivers][BANDS][];
+        sumSq = new double[receivers][BANDS][];
+        int windows = (EchoHistogram.HZ[0] * seconds + WINDOW - 1) / WINDOW;
+        for (int r = 0; r < receivers; ++r) {
+            for (int b = 0; b < BANDS; ++b) {
+                sum[r][b] = new double[windows];
+                sumSq[r][b] = new double[windows];
+            }
+        }
+    }
+
+    /** adds a round, the histograms of the rays of that round only */
+    void add(EchoHistogram[] round) {
+        ++rounds;
+        for (int r = 0; r < round.length; ++r) {
+            for (int b = 0; b < BANDS; ++b) {
+                var ec = round[r].echo[b];
+                int width = WINDOW * EchoHistogram.HZ[b] / EchoHistogram.HZ[0];
+                for (int w = 0; w < sum[r][b].length; ++w) {
+                    double e = 0;
+                    for (int i = w * width, end = Math.min(ec.length, i + width); i < end; ++i) {
+                        e += ec[i];
+                    }
+                    sum[r][b][w] += e;
+                    sumSq[r][b][w] += e * e;
+                }
+            }
+        }
+    }
+
+    /**
+     * the largest relative error of the mean at 95% confidence,
+     * over receivers, bands and the windows within range dB of the loudest window.
+     * infinite until there are 2 rounds.
+     */
+    double error(double range) {
+        if (rounds < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double floor = Math.pow(10, -range / 10);
+        double worst = 0;
+        for (int r = 0; r < sum.length; ++r) {
+            for (int b = 0; b < BANDS; ++b) {
+                double peak = 0;
+                for (var s : sum[r][b]) {
+                    peak = Math.max(peak, s);
+                }
+                if (peak == 0) {
+                    // nothing reached this receiver yet
+                    return Double.POSITIVE_INFINITY;
+                }
+                for (int w = 0; w < sum[r][b].length; ++w) {
+                    double s = sum[r][b][w];
+                    if (s < peak * floor) {
+                        continue;
+                    }
+                    double mean = s / rounds;
+                    double var = Math.max(0, (sumSq[r][b][w] - s * mean) / (rounds - 1));
+                    worst = Math.max(worst, Z * Math.sqrt(var / rounds) / mean);
+                }
+            }
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,186 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Impulse responses kept by the hash of everything they are computed from,
+ * the geometry, materials, source, receiver and settings, so a simulation done before is not traced again.
+ * <p>
+ * Entries are echo files named by the hash in the directory, in double so nothing is lost,
+ * and the modified time of a file is its last use. Recently used ones are also kept in memory.
+ * Both drop the least recently used entries when they are over their size.
+ * Processes can share the directory, an entry is written aside and moved.
+ * @author naoki
+ */
+public class EchoCache {
+    /** changed when the tracing gives other echoes for the same settings */
+    static final String VERSION = "echo-cache 2";
+
+    final Path dir;
+    final long maxBytes;
+    final long memoryBytes;
+    private final LinkedHashMap<String, EchoFile.Echo> memory = new LinkedHashMap<>(16, .75f, true);
+    private long memoryUsed;
+    // hash of the geometry and materials, a scene can be large
+    private final Map<PackedScene, byte[]> scenes = new WeakHashMap<>();
+
+    EchoCache(Path dir, long maxBytes, long memoryBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+        this.memoryBytes = memoryBytes;
+        // the size may be smaller than last time
+        evict();
+    }
+
+    /**
+     * key of the echo of the tracer for the source and receiver.
+     * @param settings other values the echo depends on, like the rays and seconds
+     */
+    String key(RayTracer tracer, Vec source, Vec receiver, double radius, Object... settings) {
+        var md = sha256();
+        md.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        md.update(sceneHash(tracer.scene));
+        var buf = ByteBuffer.allocate(12 * 8);
+        buf.putDouble(source.x).putDouble(source.y).putDouble(source.z)
+                .putDouble(receiver.x).putDouble(receiver.y).putDouble(receiver.z).putDouble(radius)
+                .putDouble(tracer.maxDistance).putDouble(tracer.threshold).putDouble(tracer.scattering)
+                .putDouble(tracer.splitRatio).putDouble(tracer.imageSourceOrder);
+        md.update(buf.array());
+        var rest = new StringBuilder().append(tracer.diffuseRain).append(',').append(tracer.seed);
+        for (var s : settings) {
+            rest.append(',').append(s);
+        }
+        md.update(rest.toString().getBytes(StandardCharsets.UTF_8));
+        var hash = new StringBuilder();
+        for (var b : md.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private synchronized byte[] sceneHash(PackedScene scene) {
+        return scenes.computeIfAbsent(scene, s -> {
+            var md = sha256();
+            var buf = ByteBuffer.allocate(s.triangles.length * 8);
+            buf.asDoubleBuffer().put(s.triangles);
+            md.update(buf.array());
+            buf = ByteBuffer.allocate(s.material.length * 4);
+            buf.asIntBuffer().put(s.material);
+            md.update(buf.array());
+            buf = ByteBuffer.allocate(s.absorptions.length * 8);
+            buf.asDoubleBuffer().put(s.absorptions);
+            md.update(buf.array());
+            return md.digest();
+        });
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** echo of the key, or null if it is not cached */
+    EchoFile.Echo get(String key) throws IOException {
+        synchronized (this) {
+            var echo = memory.get(key);
+            if (echo != null) {
+                touch(key);
+                return echo;
+            }
+        }
+        EchoFile.Echo echo;
+        try {
+            echo = EchoFile.read(path(key));
+        } catch (NoSuchFileException ex) {
+            // also when another process evicted it
+            return null;
+        }
+        touch(key);
+        remember(key, echo);
+        return echo;
+    }
+
+    void put(String key, EchoHistogram hist) throws IOException {
+        var echo = new EchoFile.Echo(hist.trimmed(), hist.count);
+        var tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            EchoFile.write(tmp, echo.echo, echo.count, 0);
+            Files.move(tmp, path(key), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        // not read back, another process may evict the file at any time
+        remember(key, echo);
+        evict();
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key + ".echo");
+    }
+
+    private void touch(String key) throws IOException {
+        try {
+            Files.setLastModifiedTime(path(key), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            // evicted on disk, still in memory
+        }
+    }
+
+    private synchronized void remember(String key, EchoFile.Echo echo) {
+        var old = memory.put(key, echo);
+        memoryUsed += bytes(echo) - (old == null ? 0 : bytes(old));
+        for (var it = memory.values().iterator(); memoryUsed > memoryBytes && it.hasNext();) {
+            memoryUsed -= bytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long bytes(EchoFile.Echo echo) {
+        long n = 0;
+        for (var ec : echo.echo) {
+            n += ec.length * 8L;
+        }
+        return n;
+    }
+
+    /** deletes the least recently used files while the directory is over maxBytes */
+    private synchronized void evict() throws IOException {
+        var files = new ArrayList<Map.Entry<Path, long[]>>();
+        long total = 0;
+        try (var list = Files.list(dir)) {
+            for (var p : list.filter(p -> p.toString().endsWith(".echo")).collect(Collectors.toList())) {
+                try {
+                    long size = Files.size(p);
+                    files.add(Map.entry(p, new long[] {Files.getLastModifiedTime(p).toMillis(), size}));
+                    total += size;
+                } catch (NoSuchFileException ex) {
+                    // evicted by another process
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(e -> e.getValue()[0]));
+        for (int i = 0; total > maxBytes && i < files.size(); ++i) {
+            Files.deleteIfExists(files.get(i).getKey());
+            total -= files.get(i).getValue()[1];
+        }
+    }
+}
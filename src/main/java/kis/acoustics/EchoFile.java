@@ -0,0 +1,244 @@
+package kis.acoustics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Impulse response file.
+ * Energy per time bin of each band, stored as float or double and optionally deflated.
+ * Uncompressed files are read by a memory map and a bulk copy per band.
+ * <pre>
+ * header   int magic, int version, int flags, int bands, long count
+ * bands    int hz, int length, double bins per second
+ * payload  bands in order, float or double; with DEFLATE, int size and the deflated bytes
+ * </pre>
+ * @author naoki
+ */
+public class EchoFile {
+    static final int MAGIC = 0x52494341; // "ACIR"
+    static final int VERSION = 1;
+    /** payload is float instead of double */
+    static final int FLOAT = 1;
+    /** payload is deflated */
+    static final int DEFLATE = 2;
+    private static final int HEADER = 24;
+    private static final int BAND_HEADER = 16;
+
+    /** Echo read from a file. */
+    static class Echo {
+        /** center frequency of each band, also the bins per second */
+        final int[] hz;
+        final double[][] echo;
+        final long count;
+
+        Echo(int[] hz, double[][] echo, long count) {
+            this.hz = hz;
+            this.echo = echo;
+            this.count = count;
+        }
+
+        /** echo in bands of {@link EchoHistogram#HZ}, the same as it is read after written */
+        Echo(double[][] echo, long count) {
+            this(Arrays.copyOf(EchoHistogram.HZ, echo.length), echo, count);
+        }
+    }
+
+    static void write(Path path, EchoHistogram hist, int flags) throws IOException {
+        write(path, hist.trimmed(), hist.count, flags);
+    }
+
+    /** @param echo bands of {@link EchoHistogram#HZ}, a bin per 1 / hz second */
+    static void write(Path path, double[][] echo, long count, int flags) throws IOException {
+        if (echo.length != PackedScene.BANDS) {
+            throw new IllegalArgumentException(
+                    "echo has " + echo.length + " bands but the file keeps " + PackedScene.BANDS);
+        }
+        int width = (flags & FLOAT) != 0 ? 4 : 8;
+        long samples = 0;
+        for (var ec : echo) {
+            samples += ec.length;
+        }
+        var payload = ByteBuffer.allocate(Math.toIntExact(samples * width)).order(ByteOrder.LITTLE_ENDIAN);
+        for (var ec : echo) {
+            if (width == 4) {
+                var fb = payload.asFloatBuffer();
+                for (var e : ec) {
+                    fb.put((float) e);
+                }
+            } else {
+                payload.asDoubleBuffer().put(ec);
+            }
+            payload.position(payload.position() + ec.length * width);
+        }
+        payload.flip();
+        if ((flags & DEFLATE) != 0) {
+            payload = deflate(payload);
+        }
+
+        var head = ByteBuffer.allocate(HEADER + BAND_HEADER * echo.length).order(ByteOrder.LITTLE_ENDIAN);
+        head.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(echo.length).putLong(count);
+        for (int i = 0; i < echo.length; ++i) {
+            head.putInt(EchoHistogram.HZ[i]).putInt(echo[i].length).putDouble(EchoHistogram.HZ[i]);
+        }
+        head.flip();
+
+        // write aside and move, so that readers never see a half written file
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (head.hasRemaining()) {
+                ch.write(head);
+            }
+            while (payload.hasRemaining()) {
+                ch.write(payload);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer deflate(ByteBuffer data) {
+        var deflater = new Deflater();
+        try {
+            deflater.setInput(data.array(), 0, data.limit());
+            deflater.finish();
+            var out = new byte[data.limit() / 2 + 64];
+            int len = 4;
+            while (!deflater.finished()) {
+                if (len == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                len += deflater.deflate(out, len, out.length - len);
+            }
+            var buf = ByteBuffer.wrap(out, 0, len).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(0, len - 4);
+            return buf;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static Echo read(Path path) throws IOException {
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.remaining() < HEADER || buf.getInt() != MAGIC) {
+                throw new IOException(path + " is not an echo file");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported echo file version " + version + ": " + path);
+            }
+            int flags = buf.getInt();
+            int bands = buf.getInt();
+            long count = buf.getLong();
+            var hz = new int[bands];
+            var lengths = new int[bands];
+            long samples = 0;
+            for (int i = 0; i < bands; ++i) {
+                hz[i] = buf.getInt();
+                lengths[i] = buf.getInt();
+                // bins per second, the same as hz
+                buf.getDouble();
+                samples += lengths[i];
+            }
+            int width = (flags & FLOAT) != 0 ? 4 : 8;
+            if ((flags & DEFLATE) != 0) {
+                buf = inflate(buf, Math.toIntExact(samples * width), path);
+            }
+            var echo = new double[bands][];
+            for (int i = 0; i < bands; ++i) {
+                echo[i] = new double[lengths[i]];
+                if (width == 4) {
+                    var fb = buf.asFloatBuffer();
+                    for (int j = 0; j < lengths[i]; ++j) {
+                        echo[i][j] = fb.get(j);
+                    }
+                } else {
+                    buf.asDoubleBuffer().get(echo[i]);
+                }
+                buf.position(buf.position() + lengths[i] * width);
+            }
+            return new Echo(hz, echo, count);
+        }
+    }
+
+    private static ByteBuffer inflate(ByteBuffer buf, int size, Path path) throws IOException {
+        var packed = new byte[buf.getInt()];
+        buf.get(packed);
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            var out = new byte[size];
+            int len = 0;
+            while (len < size && !inflater.finished()) {
+                int n = inflater.inflate(out, len, size - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                len += n;
+            }
+            if (len != size) {
+                throw new IOException("broken echo file: " + path);
+            }
+            return ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (DataFormatException ex) {
+            throw new IOException("broken echo file: " + path, ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** writes the echo as JSON for other tools */
+    static void exportJson(Path path, double[][] echo) throws IOException {
+        Map<String, Object> data = Map.of(
+                "freq", EchoHistogram.HZ,
+                "echo", echo);
+        Files.writeString(path, new ObjectMapper().writeValueAsString(data));
+    }
+
+    /**
+     * converts between the echo file and JSON by the extension of the output.
+     * echo.json written by older versions can be converted to the echo file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: EchoFile <input> <output.json | output.echo> [float] [deflate]");
+            System.exit(1);
+        }
+        var in = Path.of(args[0]);
+        var out = Path.of(args[1]);
+        double[][] echo;
+        long count = 0;
+        if (in.toString().endsWith(".json")) {
+            var map = new ObjectMapper().readValue(in.toFile(), Map.class);
+            echo = ((List<List<Number>>) map.get("echo")).stream()
+                    .map(l -> l.stream().mapToDouble(Number::doubleValue).toArray())
+                    .toArray(double[][]::new);
+        } else {
+            var e = read(in);
+            echo = e.echo;
+            count = e.count;
+        }
+        if (out.toString().endsWith(".json")) {
+            exportJson(out, echo);
+        } else {
+            int flags = 0;
+            for (int i = 2; i < args.length; ++i) {
+                flags |= "float".equals(args[i]) ? FLOAT : "deflate".equals(args[i]) ? DEFLATE : 0;
+            }
+            write(out, echo, count, flags);
+        }
+    }
+}
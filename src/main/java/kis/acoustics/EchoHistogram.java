@@ -0,0 +1,161 @@
+package kis.acoustics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import static kis.acoustics.PackedScene.BANDS;
+
+/**
+ * Arrival energy binned by time for each band.
+ * Each worker fills its own histogram and they are merged at the end.
+ * Energy is summed in fixed point, so the sum is exactly the same in whatever order
+ * the arrivals and the histograms are added. echo is updated by {@link #resolve()}.
+ * @author naoki
+ */
+public class EchoHistogram {
+    static final int[] HZ = {125, 250, 500, 1000, 2000, 4000};
+    static final double SOUND_SPEED = 340;
+    /** units of energy in the fixed point sum, down to 2.3e-10 and up to 2.1e9 */
+    static final double SCALE = 0x1p32;
+
+    final double[][] echo;
+    // fixed point energy, see SCALE
+    final long[][] sum;
+    // arrivals added
+    long count;
+    // rays traced from the source
+    long rays;
+
+    /** @param seconds length of the echo */
+    EchoHistogram(int seconds) {
+        echo = new double[BANDS][];
+        sum = new long[BANDS][];
+        for (int i = 0; i < BANDS; ++i) {
+            echo[i] = new double[HZ[i] * seconds];
+            sum[i] = new long[HZ[i] * seconds];
+        }
+    }
+
+    static EchoHistogram[] of(int receivers, int seconds) {
+        var hists = new EchoHistogram[receivers];
+        for (int i = 0; i < receivers; ++i) {
+            hists[i] = new EchoHistogram(seconds);
+        }
+        return hists;
+    }
+
+    void add(double distance, double[] energy, int offset) {
+        add(distance, energy, offset, 1);
+    }
+
+    /** adds an arrival that stands for weight rays */
+    void add(double distance, double[] energy, int offset, double weight) {
+        ++count;
+        for (int i = 0; i < BANDS; ++i) {
+            var index = (int)(distance / SOUND_SPEED * HZ[i]);
+            if (index < sum[i].length) {
+                sum[i][index] += Math.round(energy[offset + i] * energy[offset + i] * weight * SCALE);
+            }
+        }
+    }
+
+    /** adds the other histogram into this one */
+    EchoHistogram merge(EchoHistogram other) {
+        for (int i = 0; i < BANDS; ++i) {
+            for (int j = 0; j < sum[i].length; ++j) {
+                sum[i][j] += other.sum[i][j];
+            }
+        }
+        count += other.count;
+        rays += other.rays;
+        return this;
+    }
+
+    static EchoHistogram[] merge(EchoHistogram[] hists, EchoHistogram[] others) {
+        for (int i = 0; i < hists.length; ++i) {
+            hists[i].merge(others[i]);
+        }
+        return hists;
+    }
+
+    /** bytes of the fixed point sums */
+    int sumBytes() {
+        int n = 0;
+        for (var s : sum) {
+            n += s.length * 8;
+        }
+        return n;
+    }
+
+    /** writes the fixed point sums of the bands in order */
+    void putSums(ByteBuffer buf) {
+        for (var s : sum) {
+            buf.asLongBuffer().put(s);
+            buf.position(buf.position() + s.length * 8);
+        }
+    }
+
+    /** reads the sums written by {@link #putSums}, with the byte order of buf */
+    void getSums(ByteBuffer buf) {
+        for (var s : sum) {
+            buf.asLongBuffer().get(s);
+            buf.position(buf.position() + s.length * 8);
+        }
+    }
+
+    /** adds the sum to the shared sums of the bands and clears this, returns the count of the arrivals */
+    long drainTo(AtomicLongArray[] target) {
+        for (int i = 0; i < BANDS; ++i) {
+            for (int j = 0; j < sum[i].length; ++j) {
+                if (sum[i][j] != 0) {
+                    target[i].getAndAdd(j, sum[i][j]);
+                    sum[i][j] = 0;
+                }
+            }
+        }
+        long c = count;
+        count = 0;
+        return c;
+    }
+
+    /** adds the shared sums of the bands */
+    void addFrom(AtomicLongArray[] source) {
+        for (int i = 0; i < BANDS; ++i) {
+            for (int j = 0; j < sum[i].length; ++j) {
+                sum[i][j] += source[i].get(j);
+            }
+        }
+    }
+
+    /** updates echo from the sum */
+    EchoHistogram resolve() {
+        for (int i = 0; i < BANDS; ++i) {
+            for (int j = 0; j < sum[i].length; ++j) {
+                echo[i][j] = sum[i][j] / SCALE;
+            }
+        }
+        return this;
+    }
+
+    static EchoHistogram[] resolve(EchoHistogram[] hists) {
+        for (var h : hists) {
+            h.resolve();
+        }
+        return hists;
+    }
+
+    /** echo without the silent tail */
+    double[][] trimmed() {
+        return Arrays.stream(echo)
+                .map(ec -> {
+                    var idx = ec.length - 1;
+                    for (; idx >= 0; idx--) {
+                        if (ec[idx] > 0.01) {
+                            break;
+                        }
+                    }
+                    return Arrays.copyOf(ec, idx + 1);
+                })
+                .toArray(double[][]::new);
+    }
+}
@@ -0,0 +1,72 @@
+package kis.acoustics;
+
+/**
+ * In-place radix-2 complex FFT of a fixed size with precomputed twiddles.
+ * Instances are immutable and can be shared between threads.
+ * @author naoki
+ */
+public class FFT {
+    final int size;
+    private final double[] cos, sin;
+    private final int[] reverse;
+
+    FFT(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size should be power of 2: " + size);
+        }
+        this.size = size;
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int i = 0; i < size / 2; ++i) {
+            cos[i] = Math.cos(-2 * Math.PI * i / size);
+            sin[i] = Math.sin(-2 * Math.PI * i / size);
+        }
+        reverse = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; ++i) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /** forward transform */
+    void transform(double[] re, double[] im) {
+        transform(re, im, false);
+    }
+
+    /** inverse transform, scaled by 1 / size */
+    void inverse(double[] re, double[] im) {
+        transform(re, im, true);
+        double scale = 1. / size;
+        for (int i = 0; i < size; ++i) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(double[] re, double[] im, boolean inverse) {
+        for (int i = 0; i < size; ++i) {
+            int j = reverse[i];
+            if (i < j) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        double sign = inverse ? -1 : 1;
+        for (int len = 2; len <= size; len <<= 1) {
+            int half = len / 2;
+            int step = size / len;
+            for (int i = 0; i < size; i += len) {
+                for (int k = 0; k < half; ++k) {
+                    double wr = cos[k * step], wi = sign * sin[k * step];
+                    int a = i + k, b = a + half;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package kis.acoustics;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.awt.BorderLayout;
 import static java.lang.Math.cos;
 import static java.lang.Math.sin;
@@ -8,22 +7,20 @@ import static java.lang.Math.sqrt;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Random;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import javax.swing.ImageIcon;
+import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.Timer;
 import lombok.AllArgsConstructor;
 import lombok.Value;
 
@@ -33,7 +30,7 @@ import lombok.Value;
  */
 public class GeoAcoustics {
 
-    private static final double EPS = 1e-4;
+    static final double EPS = 1e-4;
 
     @AllArgsConstructor
     static final class Vec {
@@ -84,6 +81,15 @@ public class GeoAcoustics {
         Vec mod(Vec b) {
             return new Vec(y * b.z - z * b.y, z * b.x - x * b.z, x * b.y - y * b.x);
         }
+
+        Vec min(Vec b) {
+            return new Vec(Math.min(x, b.x), Math.min(y, b.y), Math.min(z, b.z));
+        }
+
+        Vec max(Vec b) {
+            return new Vec(Math.max(x, b.x), Math.max(y, b.y), Math.max(z, b.z));
+        }
+
         Vec turny(double rad) {
             double s = sin(rad);
             double c = cos(rad);
@@ -104,6 +110,8 @@ public class GeoAcoustics {
         abstract void draw(Graphics2D g, Function<Vec, Point2D> t);
         abstract double intersect(Ray y, Surface[] robj);
         abstract Vec getNormal(Vec point);
+        abstract Vec min();
+        abstract Vec max();
     }
     
     static final class Sphere extends Surface {
@@ -133,6 +141,16 @@ public class GeoAcoustics {
         Vec getNormal(Vec point) {
             return point.sub(pos).normalize();
         }
+
+        @Override
+        Vec min() {
+            return pos.sub(new Vec(rad, rad, rad));
+        }
+
+        @Override
+        Vec max() {
+            return pos.add(new Vec(rad, rad, rad));
+        }
         
         @Override
         void draw(Graphics2D g, Function<Vec, Point2D> t) {
@@ -189,6 +207,16 @@ public class GeoAcoustics {
         Vec getNormal(Vec point) {
             return normal;
         }
+
+        @Override
+        Vec min() {
+            return p1.min(pos).min(p3);
+        }
+
+        @Override
+        Vec max() {
+            return p1.max(pos).max(p3);
+        }
         
         @Override
         void draw(Graphics2D g, Function<Vec, Point2D> t) {
@@ -202,35 +230,58 @@ public class GeoAcoustics {
 
     }
 
-    @Value
-    static final class SoundRay {
-        Ray ray;
-        double[] intensity;
-        double distance;
-    }
-    
     @Value
     static class Point2D{
         double x, y;
     }
     
-    enum Material {
-        //            125Hz 250Hz 500Hz 1KHz  2KHz  4KHz
-        CONCRETE     (0.01, 0.01, 0.02, 0.02, 0.03, 0.04),
-        WALL_CLOTH   (0.03, 0.03, 0.03, 0.04, 0.06, 0.08),
-        WOOD_FLOOR   (0.16, 0.14, 0.11, 0.08, 0.08, 0.07),
-        CARPET_PUNCH (0.03, 0.04, 0.06, 0.10, 0.20, 0.35),
-        CARPET_PILE  (0.09, 0.10, 0.20, 0.25, 0.30, 0.40),
-        CURTAIN_FLAT (0.05, 0.07, 0.13, 0.22, 0.32, 0.35),
-        CURTAIN_PLEAT(0.10, 0.25, 0.55, 0.65, 0.70, 0.70),
-        REFRECTOR    (0.20, 0.13, 0.10, 0.07, 0.06, 0.06)
-        ;
-        
-        double[] absorptions;
-
-        private Material(double... absorptions) {
+    static final class Material {
+        private static final Map<String, Material> PRESETS = new LinkedHashMap<>();
+        //                                                    125Hz 250Hz 500Hz 1KHz  2KHz  4KHz
+        static final Material CONCRETE      = preset("CONCRETE",      0.01, 0.01, 0.02, 0.02, 0.03, 0.04);
+        static final Material WALL_CLOTH    = preset("WALL_CLOTH",    0.03, 0.03, 0.03, 0.04, 0.06, 0.08);
+        static final Material WOOD_FLOOR    = preset("WOOD_FLOOR",    0.16, 0.14, 0.11, 0.08, 0.08, 0.07);
+        static final Material CARPET_PUNCH  = preset("CARPET_PUNCH",  0.03, 0.04, 0.06, 0.10, 0.20, 0.35);
+        static final Material CARPET_PILE   = preset("CARPET_PILE",   0.09, 0.10, 0.20, 0.25, 0.30, 0.40);
+        static final Material CURTAIN_FLAT  = preset("CURTAIN_FLAT",  0.05, 0.07, 0.13, 0.22, 0.32, 0.35);
+        static final Material CURTAIN_PLEAT = preset("CURTAIN_PLEAT", 0.10, 0.25, 0.55, 0.65, 0.70, 0.70);
+        static final Material REFRECTOR     = preset("REFRECTOR",     0.20, 0.13, 0.10, 0.07, 0.06, 0.06);
+
+        final String name;
+        final double[] absorptions;
+
+        /** material with own absorptions for 125Hz to 4KHz */
+        Material(String name, double... absorptions) {
+            if (absorptions.length != PackedScene.BANDS) {
+                throw new IllegalArgumentException(
+                        name + " needs " + PackedScene.BANDS + " absorptions but " + absorptions.length);
+            }
+            this.name = name;
             this.absorptions = absorptions;
         }
+
+        private static Material preset(String name, double... absorptions) {
+            var m = new Material(name, absorptions);
+            PRESETS.put(name, m);
+            return m;
+        }
+
+        static Material[] values() {
+            return PRESETS.values().toArray(Material[]::new);
+        }
+
+        static Material valueOf(String name) {
+            var m = PRESETS.get(name);
+            if (m == null) {
+                throw new IllegalArgumentException("No material " + name);
+            }
+            return m;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
     }
     
     static class Rectangle extends Surface {
@@ -268,6 +319,16 @@ public class GeoAcoustics {
         Vec getNormal(Vec point) {
             return p1.getNormal(point);
         }
+
+        @Override
+        Vec min() {
+            return ul.min(ur).min(br).min(bl);
+        }
+
+        @Override
+        Vec max() {
+            return ul.max(ur).max(br).max(bl);
+        }
         
         @Override
         double intersect(Ray y, Surface[] robj) {
@@ -298,75 +359,26 @@ public class GeoAcoustics {
         new Rectangle(points[2], points[1], points[5], points[6], Material.WALL_CLOTH),
         new Rectangle(points[0], points[3], points[7], points[4], Material.WALL_CLOTH)
     );
-    @AllArgsConstructor
-    static class DoublePair {
-        double distance, intensity[];
-
-        @Override
-        public String toString() {
-            return String.format("%.3f(%.3f)", distance, intensity);
-        }
-        
-    }
     
     public static void main(String[] args) throws Exception {
         JFrame frame = new JFrame("Hall");
         
         Vec source = new Vec(3, 2, 3);
-        var mic = new Sphere(.1, new Vec(8, 2, 3), Material.REFRECTOR);
+        var receivers = Receivers.of(.1, new Vec(8, 2, 3));
         
-        var start = System.currentTimeMillis();
         var samples = 500_000;
-        var divides = 200;
-        var iterate = samples/ divides;
-        var arrivals = IntStream.range(0, divides).parallel().mapToObj(__ -> {
-            Random rand = new Random();
-            Queue<SoundRay> ray = new ArrayDeque<>();
-            IntStream.range(0, iterate).forEach(i -> 
-                ray.add(new SoundRay(new Ray(source, Vec.ofRandom(rand)), IntStream.range(0, 6).mapToDouble(n -> 1).toArray(), 0)));
-            List<SoundRay> rays = new ArrayList<>();
-            var sr = new Surface[1];
-            var divArrivals = new ArrayList<DoublePair>();
-            while(!ray.isEmpty()) {
-                var r = ray.poll();
-                if (r.distance > 340 * 4) {
-                    continue;
-                }
-                var dist = mic.intersect(r.ray, sr);
-                if (dist != 0) {
-                    divArrivals.add(new DoublePair(dist + r.distance, r.intensity));
-                }
-
-                surfaces.stream()
-                        .map(s -> {
-                            var ret = new Surface[1];
-                            double d = s.intersect(r.ray, ret);
-                            return new Object[]{d, ret[0]};
-                        })
-                        .filter(ret -> (double)ret[0] > 0)
-                        .sorted((c1, c2) -> ((Double)c1[0]).compareTo((Double)c2[0]))
-                        .findFirst()
-                        .ifPresent(ret -> {
-                            var p = r.ray.obj.add(r.ray.dist.mul((double)ret[0]));
-                            var collid = new SoundRay( // 衝突点をもとめる
-                                new Ray(r.ray.getObj(), p),
-                                r.intensity, (double)ret[0]);
-                            rays.add(collid);
-                            var s = (Surface) ret[1];
-                            var n = (s).getNormal(p);
-                            var t = IntStream.range(0, 6)
-                                    .mapToDouble(idx -> r.intensity[idx] * (1 - s.material.absorptions[idx]))
-                                    .toArray();
-                            if (Arrays.stream(t).max().orElse(0) < 0.01) {
-                                return;
-                            }
-                            ray.offer(new SoundRay(new Ray(p, reflect(r.ray.dist, n)), t,
-                                    r.distance + (double)ret[0]));
-                        });
-            }
-            return divArrivals;
-        }).flatMap(List::stream).collect(Collectors.toList());
-        System.out.println((System.currentTimeMillis() - start) / 1000. + "s");
+        var echoLen = 5; // second
+        // mesh and materials json can be given instead of the built-in room
+        var scene = args.length > 0
+                ? SceneLoader.load(Path.of(args[0]), args.length > 1 ? Path.of(args[1]) : null, false)
+                : new PackedScene(surfaces);
+        var tracer = new RayTracer(scene);
+        // the image source tree grows as a power of the planes, a loaded mesh is traced
+        tracer.imageSourceOrder = args.length > 0 ? -1 : 3;
+        // the scattered part reaches the receiver by diffuse rain from every reflection
+        tracer.scattering = .2;
+        // the graph shows the rays traced so far while simulating
+        var live = new LiveEcho();
         
         BufferedImage img = new BufferedImage(400, 350, BufferedImage.TYPE_INT_RGB);
         JLabel label = new JLabel(new ImageIcon(img));
@@ -375,9 +387,21 @@ public class GeoAcoustics {
         BufferedImage graph = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
         var lblGraph = new JLabel(new ImageIcon(graph));
         frame.add(BorderLayout.SOUTH, lblGraph);
+        var stop = new JButton("Stop");
+        stop.addActionListener(al -> live.cancel());
+        frame.add(BorderLayout.NORTH, stop);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(500, 400);
         frame.setVisible(true);
+        var preview = new Timer(500, al -> {
+            var hists = tracer.estimate(live);
+            if (hists != null) {
+                drawEcho(graph.createGraphics(), hists[0].echo);
+                lblGraph.repaint();
+                frame.setTitle(String.format("Hall %,d rays", hists[0].rays));
+            }
+        });
+        preview.start();
         
         new Thread(() -> {
             try {
@@ -388,7 +412,11 @@ public class GeoAcoustics {
                     g.setColor(Color.BLACK);
                     g.fillRect(0, 0, 400, 350);
                     g.setColor(Color.WHITE);
-                    surfaces.forEach(s -> s.draw(g, t));
+                    if (args.length > 0) {
+                        scene.draw(g, t);
+                    } else {
+                        surfaces.forEach(s -> s.draw(g, t));
+                    }
                     /*
                     rays.stream().limit(30).forEach(rr -> {
                         g.setColor(new Color((float)rr.intensity[3], 0, 0));
@@ -398,50 +426,75 @@ public class GeoAcoustics {
                     });*/
                     
                     g.setColor(Color.YELLOW);
-                    mic.draw(g, t);
+                    receivers.spheres.forEach(mic -> mic.draw(g, t));
                     label.repaint();
                     Thread.sleep(100);
                 }
             } catch (InterruptedException ex) {
             }
         }).start();
-        System.out.println(arrivals.size());
-        Collections.sort(arrivals, (d1, d2) -> Double.compare(d1.distance, d2.distance));
-        int[] hz = {125, 250, 500, 1000, 2000, 4000};
-        var echo = new double[hz.length][];
-        var echoLen = 5; // second
-        for (int i = 0; i < hz.length; ++i) {
-            echo[i] = new double[hz[i] * echoLen];
-        }
-        var soundSpeed = 340;
-        for (var ar : arrivals) {
-            for (int i = 0; i < 6; ++i) {
-                var index = (int)(ar.distance / soundSpeed * hz[i]);
-                if (index < echo[i].length) {
-                    echo[i][index] += ar.intensity[i] * ar.intensity[i];
-                }
+
+        // -Dacoustics.ir=44100 also writes echo2.wav, the impulse responses at the rate.
+        // the arrivals kept for them grow with the rays, so they are not kept without it
+        int irRate = Integer.getInteger("acoustics.ir", 0);
+        // a configuration simulated before is read from the cache
+        var cache = new EchoCache(Path.of("echo-cache"), 1L << 30, 1L << 28);
+        var keys = new String[receivers.size()];
+        var cached = new EchoFile.Echo[receivers.size()];
+        // the cache has no arrivals, the impulse responses are always traced
+        boolean hit = irRate == 0;
+        for (int i = 0; i < keys.length; ++i) {
+            var mic = receivers.spheres.get(i);
+            keys[i] = cache.key(tracer, source, mic.pos, mic.rad, samples, echoLen);
+            cached[i] = hit ? cache.get(keys[i]) : null;
+            hit &= cached[i] != null;
+        }
+        if (hit) {
+            preview.stop();
+            stop.setEnabled(false);
+            drawEcho(graph.createGraphics(), cached[0].echo);
+            lblGraph.repaint();
+            frame.setTitle("Hall (cached)");
+            for (int i = 0; i < cached.length; ++i) {
+                EchoFile.write(echoPath(i, cached.length), cached[i].echo, cached[i].count, EchoFile.FLOAT);
             }
+            return;
         }
-        var echoOut = Arrays.stream(echo)
-                .map(ec -> {
-                    var idx = ec.length - 1;
-                    for (; idx >= 0; idx--) {
-                        if (ec[idx] > 0.01) {
-                            break;
-                        }
-                    }
-                    return Arrays.copyOf(ec, idx + 1);
-                })
-                .toArray(double[][]::new);
+
+        var start = System.currentTimeMillis();
+        // a stopped or crashed run resumes from the checkpoint
+        var checkpoint = new Checkpoint(Path.of("echo2.checkpoint"), 60_000);
+        // arrivals are kept one by one for the impulse responses
+        var paths = irRate > 0 ? new PathCache() : null;
+        var histograms = tracer.simulate(source, receivers, samples, echoLen, live, checkpoint, paths);
+        preview.stop();
+        stop.setEnabled(false);
+        System.out.println((System.currentTimeMillis() - start) / 1000. + "s " + histograms[0].rays + " rays");
+        System.out.println(TraceStats.TOTAL.toJson((System.currentTimeMillis() - start) / 1000.));
+        System.out.println(Arrays.stream(histograms).mapToLong(h -> h.count).sum());
         var g2 = graph.createGraphics();
-        drawEcho(g2, echo);
-        
-        Map<String, Object> data = Map.of(
-                "freq", hz,
-                "echo", echoOut);
-        ObjectMapper om = new ObjectMapper();
-        String json = om.writeValueAsString(data);
-        Files.writeString(Path.of("echo2.json"), json);
+        drawEcho(g2, histograms[0].echo);
+        lblGraph.repaint();
+        frame.setTitle("Hall");
+
+        for (int i = 0; i < histograms.length; ++i) {
+            EchoFile.write(echoPath(i, histograms.length), histograms[i], EchoFile.FLOAT);
+            if (histograms[i].rays == samples) {
+                // not the echo of a stopped run
+                cache.put(keys[i], histograms[i]);
+            }
+        }
+        if (paths != null && paths.rays > 0) {
+            var synth = new ImpulseSynthesizer(irRate);
+            var irs = Arrays.stream(tracer.arrivals(paths))
+                    .map(a -> synth.render(a, echoLen, 0))
+                    .toArray(float[][]::new);
+            ImpulseSynthesizer.write(Path.of("echo2.wav"), irs, irRate);
+        }
+    }
+
+    static Path echoPath(int receiver, int receivers) {
+        return Path.of(receivers == 1 ? "echo2.echo" : String.format("echo2-%03d.echo", receiver));
     }
 
     static void drawEcho(Graphics2D g2, double[][] echo) {
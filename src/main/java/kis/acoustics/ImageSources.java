@@ -0,0 +1,276 @@
+package kis.acoustics;
+
+import static java.lang.Math.sqrt;
+import java.util.Arrays;
+import static kis.acoustics.PackedScene.BANDS;
+import static kis.acoustics.PackedScene.STRIDE;
+import kis.acoustics.GeoAcoustics.Sphere;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Image source tree of one source position for the early reflections.
+ * The tree only depends on the source, so it is built once and evaluated for every receiver.
+ * @author naoki
+ */
+public class ImageSources {
+    // tolerance to treat two triangles as the same plane
+    private static final double PLANE_EPS = 1e-6;
+
+    final PackedScene scene;
+    final Vec source;
+    final int maxOrder;
+
+    // reflector planes: point x, y, z and unit normal x, y, z
+    final double[] planes;
+    // reflector index of each triangle
+    final int[] reflectorOf;
+    // triangles of reflector r are members[memberStart[r]] .. members[memberStart[r + 1] - 1]
+    private final int[] memberStart, members;
+    // bounding box of each reflector, min x, y, z and max x, y, z
+    private final double[] bounds;
+
+    // image tree in breadth first order, node 0 is the source itself
+    double[] image;
+    int[] parent, reflector;
+    int size;
+
+    ImageSources(PackedScene scene, Vec source, int maxOrder) {
+        this.scene = scene;
+        this.source = source;
+        this.maxOrder = maxOrder;
+
+        // triangles on the same plane of the same surface make one reflector
+        var tri = scene.triangles;
+        var pl = new double[scene.triangleCount * 6];
+        var owner = new int[scene.triangleCount];
+        reflectorOf = new int[scene.triangleCount];
+        int count = 0;
+        for (int i = 0; i < scene.triangleCount; ++i) {
+            int o = i * STRIDE;
+            int found = -1;
+            for (int r = 0; r < count && found < 0; ++r) {
+                if (owner[r] != scene.surface[i]) {
+                    continue;
+                }
+                double dot = pl[r * 6 + 3] * tri[o + 9] + pl[r * 6 + 4] * tri[o + 10] + pl[r * 6 + 5] * tri[o + 11];
+                double dist = (tri[o] - pl[r * 6]) * pl[r * 6 + 3]
+                        + (tri[o + 1] - pl[r * 6 + 1]) * pl[r * 6 + 4]
+                        + (tri[o + 2] - pl[r * 6 + 2]) * pl[r * 6 + 5];
+                if (dot > 1 - PLANE_EPS && Math.abs(dist) < PLANE_EPS) {
+                    found = r;
+                }
+            }
+            if (found < 0) {
+                found = count++;
+                owner[found] = scene.surface[i];
+                pl[found * 6] = tri[o]; pl[found * 6 + 1] = tri[o + 1]; pl[found * 6 + 2] = tri[o + 2];
+                pl[found * 6 + 3] = tri[o + 9]; pl[found * 6 + 4] = tri[o + 10]; pl[found * 6 + 5] = tri[o + 11];
+            }
+            reflectorOf[i] = found;
+        }
+        planes = Arrays.copyOf(pl, count * 6);
+        memberStart = new int[count + 1];
+        for (int i = 0; i < scene.triangleCount; ++i) {
+            memberStart[reflectorOf[i] + 1]++;
+        }
+        for (int r = 0; r < count; ++r) {
+            memberStart[r + 1] += memberStart[r];
+        }
+        members = new int[scene.triangleCount];
+        var fill = Arrays.copyOf(memberStart, count);
+        bounds = new double[count * 6];
+        for (int r = 0; r < count; ++r) {
+            Arrays.fill(bounds, r * 6, r * 6 + 3, Double.POSITIVE_INFINITY);
+            Arrays.fill(bounds, r * 6 + 3, r * 6 + 6, Double.NEGATIVE_INFINITY);
+        }
+        for (int i = 0; i < scene.triangleCount; ++i) {
+            members[fill[reflectorOf[i]]++] = i;
+            int o = i * STRIDE, b = reflectorOf[i] * 6;
+            for (int a = 0; a < 3; ++a) {
+                for (double c : new double[] {tri[o + a], tri[o + a] + tri[o + 3 + a], tri[o + a] + tri[o + 6 + a]}) {
+                    bounds[b + a] = Math.min(bounds[b + a], c);
+                    bounds[b + 3 + a] = Math.max(bounds[b + 3 + a], c);
+                }
+            }
+        }
+
+        image = new double[3 * 64];
+        parent = new int[64];
+        reflector = new int[64];
+        add(source.x, source.y, source.z, -1, -1);
+        int levelStart = 0;
+        for (int order = 1; order <= maxOrder; ++order) {
+            int levelEnd = size;
+            for (int k = levelStart; k < levelEnd; ++k) {
+                for (int r = 0; r < count; ++r) {
+                    if (r == reflector[k]) {
+                        continue;
+                    }
+                    int p = r * 6;
+                    double dist = (image[k * 3] - planes[p]) * planes[p + 3]
+                            + (image[k * 3 + 1] - planes[p + 1]) * planes[p + 4]
+                            + (image[k * 3 + 2] - planes[p + 2]) * planes[p + 5];
+                    if (dist <= 0) {
+                        // the image is behind the reflecting side
+                        continue;
+                    }
+                    if (!seen(k, r)) {
+                        // no path from the image reaches the reflector through the last one
+                        continue;
+                    }
+                    add(image[k * 3] - 2 * dist * planes[p + 3],
+                        image[k * 3 + 1] - 2 * dist * planes[p + 4],
+                        image[k * 3 + 2] - 2 * dist * planes[p + 5], k, r);
+                }
+            }
+            levelStart = levelEnd;
+        }
+    }
+
+    /**
+     * false when the reflector r is out of the beam of the image k,
+     * the pyramid from the image through a triangle of its reflector.
+     * conservative, the reflector is out only when the corners of its bounds are outside one face of every pyramid
+     */
+    private boolean seen(int k, int r) {
+        if (parent[k] < 0) {
+            return true;
+        }
+        double ax = image[k * 3], ay = image[k * 3 + 1], az = image[k * 3 + 2];
+        int p = reflector[k] * 6;
+        // face planes of the pyramid as normal and offset, positive inside
+        var faces = new double[4 * 4];
+        // the room side of the reflector
+        faces[12] = planes[p + 3]; faces[13] = planes[p + 4]; faces[14] = planes[p + 5];
+        faces[15] = -(planes[p] * planes[p + 3] + planes[p + 1] * planes[p + 4] + planes[p + 2] * planes[p + 5]);
+        var v = new double[9];
+        for (int m = memberStart[reflector[k]]; m < memberStart[reflector[k] + 1]; ++m) {
+            int o = members[m] * STRIDE;
+            for (int a = 0; a < 3; ++a) {
+                v[a] = scene.triangles[o + a];
+                v[3 + a] = scene.triangles[o + a] + scene.triangles[o + 3 + a];
+                v[6 + a] = scene.triangles[o + a] + scene.triangles[o + 6 + a];
+            }
+            for (int e = 0; e < 3; ++e) {
+                int i = e * 3, j = (e + 1) % 3 * 3, c = (e + 2) % 3 * 3;
+                double ux = v[i] - ax, uy = v[i + 1] - ay, uz = v[i + 2] - az;
+                double wx = v[j] - ax, wy = v[j + 1] - ay, wz = v[j + 2] - az;
+                double nx = uy * wz - uz * wy, ny = uz * wx - ux * wz, nz = ux * wy - uy * wx;
+                double len = sqrt(nx * nx + ny * ny + nz * nz);
+                if (len == 0) {
+                    // no beam to test against
+                    return true;
+                }
+                // the third vertex is inside
+                if (nx * (v[c] - ax) + ny * (v[c + 1] - ay) + nz * (v[c + 2] - az) < 0) {
+                    len = -len;
+                }
+                faces[e * 4] = nx / len; faces[e * 4 + 1] = ny / len; faces[e * 4 + 2] = nz / len;
+                faces[e * 4 + 3] = -(nx * ax + ny * ay + nz * az) / len;
+            }
+            if (!outside(faces, r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** true if the corners of the bounds of the reflector are all outside one of the faces */
+    private boolean outside(double[] faces, int r) {
+        for (int f = 0; f < faces.length; f += 4) {
+            boolean out = true;
+            for (int c = 0; c < 8 && out; ++c) {
+                double x = bounds[r * 6 + (c & 1) * 3];
+                double y = bounds[r * 6 + 1 + (c >> 1 & 1) * 3];
+                double z = bounds[r * 6 + 2 + (c >> 2) * 3];
+                out = faces[f] * x + faces[f + 1] * y + faces[f + 2] * z + faces[f + 3] < -PLANE_EPS;
+            }
+            if (out) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(double x, double y, double z, int par, int refl) {
+        if (size == parent.length) {
+            image = Arrays.copyOf(image, size * 6);
+            parent = Arrays.copyOf(parent, size * 2);
+            reflector = Arrays.copyOf(reflector, size * 2);
+        }
+        image[size * 3] = x;
+        image[size * 3 + 1] = y;
+        image[size * 3 + 2] = z;
+        parent[size] = par;
+        reflector[size] = refl;
+        ++size;
+    }
+
+    /**
+     * adds the expected contribution of the visible image paths to the histogram,
+     * scaled to the expected catch of the receiver sphere when rays are traced.
+     * a path keeps 1 - scattering of its energy at every reflection, the scattered part is traced
+     */
+    void addTo(EchoHistogram hist, Sphere receiver, long rays, double maxDistance, double scattering) {
+        addTo((r, d, e, o, w) -> hist.add(d, e, o, w), 0, receiver, rays, maxDistance, scattering);
+    }
+
+    /** gives the arrivals of the visible image paths to the sink as the receiver index */
+    void addTo(RayTracer.ArrivalSink sink, int index, Sphere receiver, long rays, double maxDistance,
+            double scattering) {
+        var query = scene.query();
+        var amp = new double[BANDS];
+        // scattering is a ratio of the squared amplitude, which the histogram adds
+        double specular = sqrt(1 - scattering);
+        double cx = receiver.pos.x, cy = receiver.pos.y, cz = receiver.pos.z;
+        for (int k = 0; k < size; ++k) {
+            double ix = image[k * 3] - cx, iy = image[k * 3 + 1] - cy, iz = image[k * 3 + 2] - cz;
+            double len = sqrt(ix * ix + iy * iy + iz * iz);
+            if (len <= receiver.rad) {
+                continue;
+            }
+            Arrays.fill(amp, 1);
+            // walk back from the receiver to the source through the reflectors
+            double x = cx, y = cy, z = cz;
+            // length of the last segment, between the last reflection and the receiver
+            double walked = k == 0 ? len : 0;
+            boolean visible = true;
+            for (int n = k; n >= 0 && visible; n = parent[n]) {
+                double tx = image[n * 3] - x, ty = image[n * 3 + 1] - y, tz = image[n * 3 + 2] - z;
+                double tl = sqrt(tx * tx + ty * ty + tz * tz);
+                tx /= tl; ty /= tl; tz /= tl;
+                boolean hit = query.closest(x, y, z, tx, ty, tz);
+                if (parent[n] < 0) {
+                    // direct segment to the real source
+                    visible = !hit || query.t >= tl - GeoAcoustics.EPS;
+                    break;
+                }
+                if (!hit || reflectorOf[query.hit] != reflector[n] || query.t >= tl) {
+                    visible = false;
+                    break;
+                }
+                int a = scene.material[query.hit] * BANDS;
+                for (int b = 0; b < BANDS; ++b) {
+                    amp[b] *= (1 - scene.absorptions[a + b]) * specular;
+                }
+                x += tx * query.t;
+                y += ty * query.t;
+                z += tz * query.t;
+                if (n == k) {
+                    walked = query.t;
+                }
+            }
+            if (!visible) {
+                continue;
+            }
+            // same limit as the ray tracer, weak paths are not cut
+            // because Russian roulette keeps their expected energy
+            if (len - walked > maxDistance) {
+                continue;
+            }
+            double sin = receiver.rad / len;
+            double expected = rays * (1 - sqrt(1 - sin * sin)) / 2;
+            sink.arrive(index, len - receiver.rad, amp, 0, expected);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import static kis.acoustics.PackedScene.BANDS;
+
+/**
+ * Renders arrivals into an impulse response at an audio sample rate.
+ * <p>
+ * An arrival is a click at its sample whose band b has the amplitude sqrt(energy / rays),
+ * with a random sign so that close arrivals add up their energy like the histogram does.
+ * The bands are split by linear phase FIR filters at the geometric middle between the band centers,
+ * which sum to an impulse, so an arrival with the same energy in every band stays a click.
+ * <p>
+ * The clicks of a block are put in a buffer for each band, the buffers are filtered in one FFT,
+ * and the block is overlap-added into the response.
+ * The arrivals are read once in time order and only a block of each band is kept,
+ * so the work is linear in the arrivals and the samples.
+ * @author naoki
+ */
+public class ImpulseSynthesizer {
+    /** taps of the band filters, the lowest edge of 177Hz needs a long one */
+    static final int TAPS = 2047;
+    /** samples of a block, with the taps it fills the FFT */
+    static final int BLOCK = 2048;
+    private static final int DELAY = TAPS / 2;
+
+    final float sampleRate;
+    private final FFT fft = new FFT(BLOCK * 2);
+    // spectrum of the filter of each band
+    private final double[][] filterRe = new double[BANDS][];
+    private final double[][] filterIm = new double[BANDS][];
+
+    ImpulseSynthesizer(float sampleRate) {
+        this.sampleRate = sampleRate;
+        double[] below = new double[TAPS];
+        for (int b = 0; b < BANDS; ++b) {
+            // the top band takes everything above its lower edge
+            var lowpass = b == BANDS - 1 ? impulse() : lowpass(EchoHistogram.HZ[b] * Math.sqrt(2));
+            var re = new double[BLOCK * 2];
+            for (int i = 0; i < TAPS; ++i) {
+                re[i] = lowpass[i] - below[i];
+            }
+            var im = new double[BLOCK * 2];
+            fft.transform(re, im);
+            filterRe[b] = re;
+            filterIm[b] = im;
+            below = lowpass;
+        }
+    }
+
+    private static double[] impulse() {
+        var h = new double[TAPS];
+        h[DELAY] = 1;
+        return h;
+    }
+
+    /** Blackman windowed sinc */
+    private double[] lowpass(double cutoff) {
+        var h = new double[TAPS];
+        double fc = cutoff / sampleRate;
+        for (int i = 0; i < TAPS; ++i) {
+            int n = i - DELAY;
+            double sinc = n == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * n) / (Math.PI * n);
+            double w = .42 - .5 * Math.cos(2 * Math.PI * i / (TAPS - 1)) + .08 * Math.cos(4 * Math.PI * i / (TAPS - 1));
+            h[i] = sinc * w;
+        }
+        return h;
+    }
+
+    /**
+     * impulse response of seconds from the arrivals sorted by time
+     * @param seed of the signs of the arrivals
+     */
+    float[] render(Arrivals arrivals, double seconds, long seed) {
+        int length = (int) Math.ceil(seconds * sampleRate);
+        var ir = new float[length];
+        var rand = new SplittableRandom(seed);
+        var clicks = new double[BANDS][BLOCK];
+        var re = new double[BLOCK * 2];
+        var im = new double[BLOCK * 2];
+        var yr = new double[BLOCK * 2];
+        var yi = new double[BLOCK * 2];
+        double scale = 1. / Math.max(1, arrivals.rays);
+        int i = 0;
+        // the filter tail of a block reaches DELAY samples before and after it
+        for (int start = 0; start < length + DELAY; start += BLOCK) {
+            boolean any = false;
+            for (; i < arrivals.size; ++i) {
+                long t = Math.round(arrivals.time(i) * (double) sampleRate) - start;
+                if (t >= BLOCK) {
+                    break;
+                }
+                double sign = rand.nextBoolean() ? 1 : -1;
+                for (int b = 0; b < BANDS; ++b) {
+                    clicks[b][(int) t] += sign * Math.sqrt(arrivals.energy(i, b) * scale);
+                }
+                any = true;
+            }
+            if (!any) {
+                continue;
+            }
+            Arrays.fill(yr, 0);
+            Arrays.fill(yi, 0);
+            for (int b = 0; b < BANDS; ++b) {
+                System.arraycopy(clicks[b], 0, re, 0, BLOCK);
+                Arrays.fill(re, BLOCK, BLOCK * 2, 0);
+                Arrays.fill(im, 0);
+                fft.transform(re, im);
+                var hr = filterRe[b];
+                var hi = filterIm[b];
+                for (int k = 0; k < BLOCK * 2; ++k) {
+                    yr[k] += re[k] * hr[k] - im[k] * hi[k];
+                    yi[k] += re[k] * hi[k] + im[k] * hr[k];
+                }
+                Arrays.fill(clicks[b], 0);
+            }
+            fft.inverse(yr, yi);
+            for (int k = 0; k < BLOCK * 2; ++k) {
+                int n = start + k - DELAY;
+                if (n >= 0 && n < length) {
+                    ir[n] += yr[k];
+                }
+            }
+        }
+        return ir;
+    }
+
+    /** writes the impulse responses as a WAV file, a channel for each, normalized to the peak */
+    static void write(Path path, float[][] irs, int sampleRate) throws IOException {
+        float peak = 0;
+        for (var ir : irs) {
+            for (var v : ir) {
+                peak = Math.max(peak, Math.abs(v));
+            }
+        }
+        float gain = peak > 0 ? 32000 / peak : 0;
+        var out = new float[irs.length][];
+        for (int ch = 0; ch < irs.length; ++ch) {
+            out[ch] = new float[irs[ch].length];
+            for (int j = 0; j < out[ch].length; ++j) {
+                out[ch][j] = irs[ch][j] * gain;
+            }
+        }
+        try (var writer = new WavWriter(path, irs.length, sampleRate)) {
+            writer.write(out, out[0].length);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package kis.acoustics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import static kis.acoustics.PackedScene.BANDS;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Echo of a running simulation, which the workers add every block to and a viewer reads while tracing.
+ * The sums are the fixed point ones of {@link EchoHistogram} in atomic arrays,
+ * so publishing is a few atomic adds without locks and the total is the same as without publishing.
+ * @author naoki
+ */
+public class LiveEcho {
+    Vec source;
+    Receivers receivers;
+    int seconds;
+    // [receiver][band], null until started
+    private volatile AtomicLongArray[][] sum;
+    private AtomicLongArray count;
+    private final AtomicLong rays = new AtomicLong();
+    private volatile boolean cancelled;
+
+    void start(Vec source, Receivers receivers, int seconds) {
+        this.source = source;
+        this.receivers = receivers;
+        this.seconds = seconds;
+        var sums = new AtomicLongArray[receivers.size()][BANDS];
+        for (var s : sums) {
+            for (int b = 0; b < BANDS; ++b) {
+                s[b] = new AtomicLongArray(EchoHistogram.HZ[b] * seconds);
+            }
+        }
+        count = new AtomicLongArray(receivers.size());
+        rays.set(0);
+        // the other fields are seen by the readers of sum
+        sum = sums;
+    }
+
+    /** stops the simulation after the blocks being traced, it returns the echo of the rays so far */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** rays published so far */
+    long rays() {
+        return rays.get();
+    }
+
+    /** adds the histograms of rays rays and clears them */
+    void publish(EchoHistogram[] hists, long rays) {
+        for (int r = 0; r < hists.length; ++r) {
+            count.getAndAdd(r, hists[r].drainTo(sum[r]));
+        }
+        // after the sums, so a reader never sees rays without their energy
+        this.rays.addAndGet(rays);
+    }
+
+    /**
+     * histograms of the published rays, not resolved, or null before the simulation starts.
+     * sums of blocks being published may be included without their rays.
+     */
+    EchoHistogram[] snapshot() {
+        var sums = sum;
+        if (sums == null) {
+            return null;
+        }
+        long n = rays.get();
+        var hists = EchoHistogram.of(sums.length, seconds);
+        for (int r = 0; r < sums.length; ++r) {
+            hists[r].addFrom(sums[r]);
+            hists[r].rays = n;
+            hists[r].count = count.get(r);
+        }
+        return hists;
+    }
+}
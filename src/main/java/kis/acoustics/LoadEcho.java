@@ -5,13 +5,10 @@
  */
 package kis.acoustics;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -22,11 +19,9 @@ import javax.swing.JLabel;
  */
 public class LoadEcho {
     public static void main(String[] args) throws Exception {
-        var om = new ObjectMapper();
-        var map = om.readValue(new File("echo.json"), Map.class);
-        System.out.println(map.get("freq"));
-        var list = (List<List<Double>>) map.get("echo");
-        var echo = clipping(list);
+        var file = EchoFile.read(Path.of(args.length > 0 ? args[0] : "echo2.echo"));
+        System.out.println(Arrays.toString(file.hz));
+        var echo = clipping(file.echo);
         Arrays.stream(echo)
                 .map(d -> Arrays.stream(d).summaryStatistics())
                 .forEach(System.out::println);
@@ -57,10 +52,10 @@ public class LoadEcho {
         f.show();
     }
     
-    static double[][] clipping(List<List<Double>> list) {
-        return list.stream().map(l -> {
-            var ar = l.stream()
-                    .mapToDouble(d -> d < .01 ? 0 : d)
+    static double[][] clipping(double[][] echo) {
+        return Arrays.stream(echo).map(l -> {
+            var ar = Arrays.stream(l)
+                    .map(d -> d < .01 ? 0 : d)
                     .toArray();
             var j = ar.length - 1;
             for (; j >= 0; j--) {
@@ -5,24 +5,17 @@
  */
 package kis.acoustics;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.awt.Color;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.IOException;
+import java.nio.file.Path;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.util.LinkedHashMap;
 import java.util.stream.IntStream;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -36,217 +29,183 @@ import javax.swing.JPanel;
 public class LoadWav {
     public static void main(String[] args) throws Exception {
         // var name = "~/Downloads/a2002011001-e02.wav";
-        var name = "C:\\Users\\naoki\\Dropbox\\harp.wav";
-        var file = new File(name);
-        try (var audioInput = AudioSystem.getAudioInputStream(file)) {
-            var format = audioInput.getFormat();
-            System.out.println(format);
-            System.out.println(audioInput.getFrameLength() / format.getSampleRate());
-            var pathL = new Path2D.Double();
-            pathL.moveTo(0, 0);
-            var pathR = new Path2D.Double();
-            pathR.moveTo(0, 0);
-            var image = new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB);
-            var g = image.createGraphics();
-            g.setColor(Color.WHITE);
-            g.fillRect(0, 0, 600, 400);
-            g.setColor(Color.BLACK);
-            int len = Math.min((int)(format.getSampleRate() * 10), (int)audioInput.getFrameLength());
-            var bytes = new byte[format.getFrameSize()];
-            var start = 3;
-            var freqs = start + 6;
-            var signals = new short[2][freqs][];
-            signals[0][0] = new short[len];
-            signals[1][0] = new short[len];
-            for (int i = 0; i < len; ++i) {
-                if (audioInput.read(bytes) < 0) {
-                    System.out.println(i);
+        var name = args.length > 0 ? args[0] : "C:\\Users\\naoki\\Dropbox\\harp.wav";
+        var file = Path.of(name);
+        var output = file.resolveSibling("delayed.wav");
+        var image = new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB);
+        var g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 600, 400);
+        g.setColor(Color.BLACK);
+
+        var echoFile = Path.of(args.length > 1 ? args[1] : "echo2.echo");
+        // a WAV is an impulse response of ImpulseSynthesizer, which is convolved as it is
+        boolean impulse = echoFile.toString().endsWith(".wav");
+        var echoSq = impulse ? null : LoadEcho.clipping(EchoFile.read(echoFile).echo);
+        var echo = impulse ? null : IntStream.range(0, echoSq.length)
+                .mapToObj(i -> {
+                    var w = 1 << i;
+                    return IntStream.range(0, (echoSq[i].length + w - 1) / w)
+                            .mapToDouble(idx -> 
+                                    IntStream.range(idx * w, Math.min(echoSq[i].length, idx * w + w))
+                                        .mapToDouble(ii -> echoSq[i][ii]).sum())
+                            .map(Math::sqrt)
+                            .toArray();
+                })
+                .toArray(double[][]::new);
+
+        try (var reader = new WavReader(file);
+             var writer = new WavWriter(output, reader.channels, (int) reader.sampleRate)) {
+            System.out.printf("%dch %.0fHz %.1fs%n", reader.channels, reader.sampleRate,
+                    reader.frames / reader.sampleRate);
+            var auralizer = impulse ? null : new Auralizer(echo, reader.channels, reader.sampleRate);
+            var states = impulse ? impulseStates(echoFile, reader) : null;
+            var buf = new float[reader.channels][impulse ? states[0].block() : auralizer.block];
+            var inPeak = new Envelope(500, reader.frames);
+            var outPeak = new Envelope(500, reader.frames);
+            var startTime = System.currentTimeMillis();
+            long pos = 0;
+            long readNanos = 0, writeNanos = 0;
+            int n;
+            while (true) {
+                long t = System.nanoTime();
+                n = reader.read(buf);
+                readNanos += System.nanoTime() - t;
+                if (n <= 0) {
                     break;
                 }
-                var buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
-                short right = buffer.getShort();
-                short left = buffer.getShort();
-                pathL.lineTo(i, left);
-                //pathR.lineTo(i, right);
-                signals[0][0][i] = left;
-                signals[1][0][i] = right;
-            }
-            
-            // wavelet transform
-            var startTime = System.currentTimeMillis();
-            for (var ch = 0; ch < 2; ++ch) {
-                var wlen = len;
-                var base = signals[ch][0];
-                for (int i = 1; i < signals[ch].length - 1; ++i) {
-                    wlen /= 2;
-                    signals[ch][i] = new short[wlen];
-                    var next = new short[wlen];
-                    for (int j = 0; j < wlen; ++j) {
-                        signals[ch][i][j] = (short)
-                                ((base[j * 2] - base[j * 2 + 1]) / 2);
-                        next[j] = (short)((base[j * 2] + base[j * 2 + 1]) / 2);
-                    }
-                    base = next;
+                inPeak.add(buf[0], pos, n);
+                for (var ch : buf) {
+                    // zero for the last block
+                    Arrays.fill(ch, n, ch.length, 0);
                 }
-                signals[ch][signals[ch].length - 1] = base;
-            }
-            System.out.println("wavlet " + (System.currentTimeMillis() - startTime));
-            // delay
-            var om = new ObjectMapper();
-            var map = om.readValue(new File("echo2.json"), Map.class);
-            var echoSq = LoadEcho.clipping((List<List<Double>>) map.get("echo"));
-            var echo = IntStream.range(0, echoSq.length)
-                    .mapToObj(i -> {
-                        var w = 1 << i;
-                        return IntStream.range(0, (echoSq[i].length + w - 1) / w)
-                                .mapToDouble(idx -> 
-                                        IntStream.range(idx * w, Math.min(echoSq[i].length, idx * w + w))
-                                            .mapToDouble(ii -> echoSq[i][ii]).sum())
-                                .map(Math::sqrt)
-                                .toArray();
-                    })
-                    .toArray(double[][]::new);
-
-            var delayed = new short[2][freqs][];
-            IntStream.range(0, 2).forEach(ch -> {
-                IntStream.range(1, freqs).forEach(f -> {
-                    if (f < start) {
-                        // delayed[ch][f] = new short[signals[ch][f].length];
-                        delayed[ch][f] = Arrays.copyOf(signals[ch][f], signals[ch][f].length);
-                        return;
-                    }
-                    delayed[ch][f] = new short[signals[ch][f].length];
-                    var devides = 1000;
-                    IntStream.range(0, signals[ch][f].length / devides).parallel().forEach(ib -> {
-                        for (int is = 0; is < devides; is += 2) {
-                            var i = ib * devides + is;
-                            if (i >= signals[ch][f].length) {
-                                break;
-                            }
-                            var fi = start + 5 - f;
-                            var w = 1 << fi;
-                            for (int k = 0; k < w; ++k) {
-                                var d = 0.;
-                                for (int j = 0; j < echo[fi].length; j += 1) {
-                                    if (i - j * w + k < 0) {
-                                        break;
-                                    }
-                                    if (i - j * w + k >= signals[ch][f].length) {
-                                        break;
-                                    }
-                                    d += signals[ch][f][i - j * w + k] * echo[fi][j];
-                                }
-                                d /= 25;
-                                if (d > Short.MAX_VALUE) {
-                                    d = Short.MAX_VALUE;
-                                }
-                                if (d < Short.MIN_VALUE) {
-                                    d = Short.MIN_VALUE;
-                                }
-                                var rate = 10;
-                                delayed[ch][f][i + k] = (short)((signals[ch][f][i + k] * (10 - rate) + d * rate) / 10);
+                IntStream.range(0, reader.channels).parallel()
+                        .forEach(ch -> {
+                            if (impulse) {
+                                states[ch].process(buf[ch], 0, buf[ch], 0);
+                            } else {
+                                auralizer.process(ch, buf[ch], buf[ch]);
                             }
-                        }
-                    });
-                });
-            });
+                        });
+                outPeak.add(buf[0], pos, n);
+                t = System.nanoTime();
+                writer.write(buf, n);
+                writeNanos += System.nanoTime() - t;
+                pos += n;
+            }
+            var seconds = (System.currentTimeMillis() - startTime) / 1000.;
             System.out.println("delay " + (System.currentTimeMillis() - startTime));
-            /*
-            var delay = new double[][]{
-                {.1, .5},
-                {.2, .2},
-                {.3, .1},
-            };
-            var shifts = Arrays.stream(delay)
-                    .mapToDouble(d -> d[0])
-                    .mapToInt(t -> (int)(format.getSampleRate() * t))
-                    .map(t -> t - (t & 0b111111111))
-                    .toArray();
-            for (var ch = 0; ch < 2; ++ch) {
-                var shift = (int)(format.getSampleRate() * .1); // 0.1秒ディレイ
-                shift -= shift & 0b111111111; // 位相ずれが起きないようにする
-                var start = 1;
-                for (int i = 1; i < start; ++i) {
-                    shift /= 2;
-                }
-                for (var i = start; i < signals[ch].length; ++i) {
-                    for (var j = signals[ch][i].length - 1; j >= shift; --j) {
-                        signals[ch][i][j] += (short)(signals[ch][i][j - shift] / 2);
-                    }
-                    shift /= 2;
-                }
+            var stats = new LinkedHashMap<String, Object>();
+            stats.put("frames", pos);
+            stats.put("channels", reader.channels);
+            stats.put("seconds", seconds);
+            // seconds of audio per second
+            stats.put("realtime", pos / reader.sampleRate / seconds);
+            stats.put("readSeconds", readNanos / 1e9);
+            stats.put("writeSeconds", writeNanos / 1e9);
+            if (!impulse) {
+                stats.putAll(auralizer.stats());
             }
-            */
-            // wavelet invert transform
-            var result = new short[2][];
-            for (var ch = 0; ch < 2; ++ch) {
-                var last = delayed[ch][delayed[ch].length - 1];
-                for (int i = delayed[ch].length - 2; i > 0; --i) {
-                    var next = new short[last.length * 2];
-                    for (int j = 0; j < last.length; ++j) {
-                        next[j * 2] = (short) (last[j] + delayed[ch][i][j]);
-                        next[j * 2 + 1] = (short) (last[j] - delayed[ch][i][j]);
-                    }
-                    last = next;
-                }
-                result[ch] = last;
+            System.out.println(new ObjectMapper().writeValueAsString(stats));
+            inPeak.draw(g, 20, 100);
+            outPeak.draw(g, 20, 300);
+        }
+        play(output);
+
+        var f = new JFrame("Graph");
+        var lbl = new JLabel(new ImageIcon(image));
+        f.add(lbl);
+
+        var pnl = new JPanel();
+        var btn = new JButton("Play");
+        btn.addActionListener(al -> play(output));
+        pnl.add(btn);
+        f.add("North", pnl);
+
+        if (!impulse) {
+            var echoGraph = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
+            GeoAcoustics.drawEcho(echoGraph.createGraphics(), echoSq);
+            f.add("South", new JLabel(new ImageIcon(echoGraph)));
+        }
+        f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        f.setSize(630, 450);
+        f.setVisible(true);
+    }
+
+    /**
+     * convolvers of the impulse response for the channels of the reader, a channel of the response for each
+     * and the last one for the rest. the response is scaled so that its loudest channel keeps the energy.
+     */
+    static PartitionedConvolver.State[] impulseStates(Path path, WavReader reader) throws IOException {
+        float[][] ir;
+        try (var in = new WavReader(path)) {
+            if (in.sampleRate != reader.sampleRate) {
+                throw new IllegalArgumentException("the impulse response is " + in.sampleRate
+                        + "Hz while the sound is " + reader.sampleRate + "Hz");
             }
-            System.out.println("inv wavelet " + (System.currentTimeMillis() - startTime));
+            ir = new float[in.channels][(int) in.frames];
+            in.read(ir);
+        }
+        double energy = 0;
+        for (var h : ir) {
+            energy = Math.max(energy, IntStream.range(0, h.length).mapToDouble(i -> h[i] * (double) h[i]).sum());
+        }
+        double gain = energy > 0 ? 1 / Math.sqrt(energy) : 0;
+        int block = PartitionedConvolver.blockFor(ir[0].length);
+        var convolvers = Arrays.stream(ir)
+                .map(h -> new PartitionedConvolver(IntStream.range(0, h.length).mapToDouble(i -> h[i] * gain).toArray(), block))
+                .toArray(PartitionedConvolver[]::new);
+        return IntStream.range(0, reader.channels)
+                .mapToObj(ch -> convolvers[Math.min(ch, convolvers.length - 1)].newState())
+                .toArray(PartitionedConvolver.State[]::new);
+    }
 
-            // write wav
-            var out = new ByteArrayOutputStream();
-            for (int i = 0; i < result[0].length; ++i) {
-                var buf = new byte[4];
-                var outbuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
-                for (int ch = 0; ch < 2; ++ch) {
-                    outbuf.putShort(result[ch][i]);
+    /** streams the file to the speaker in background */
+    static void play(Path wav) {
+        var th = new Thread(() -> {
+            try (var ais = AudioSystem.getAudioInputStream(wav.toFile());
+                 var line = (SourceDataLine) AudioSystem.getSourceDataLine(ais.getFormat())) {
+                line.open(ais.getFormat());
+                line.start();
+                var data = new byte[line.getBufferSize()];
+                int n;
+                while ((n = ais.read(data)) > 0) {
+                    line.write(data, 0, n);
                 }
-                out.writeBytes(buf);
+                line.drain();
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
-            var ais = new AudioInputStream(new ByteArrayInputStream(out.toByteArray()),
-                    format, len);
-            // AudioSystem.write(ais, AudioFileFormat.Type.WAVE, new File(file.getParentFile(), "delayed.wav"));
-            var dataline = new DataLine.Info(Clip.class,format);
-            var clip = (Clip) AudioSystem.getLine(dataline);
-            clip.open(ais);
-            clip.start();
-            //clip.close();
-            
-            // draw
-            for (int i = 0; i < result[0].length; ++i) {
-                pathR.lineTo(i, result[0][i]);
+        });
+        th.setDaemon(true);
+        th.start();
+    }
+
+    /** Min and max of the samples per pixel, so the graph does not keep the samples. */
+    static class Envelope {
+        final float[] min, max;
+        final long frames;
+
+        Envelope(int width, long frames) {
+            min = new float[width];
+            max = new float[width];
+            this.frames = Math.max(1, frames);
+        }
+
+        void add(float[] samples, long pos, int n) {
+            for (int i = 0; i < n; ++i) {
+                int x = (int) Math.min(min.length - 1, (pos + i) * min.length / frames);
+                min[x] = Math.min(min[x], samples[i]);
+                max[x] = Math.max(max[x], samples[i]);
+            }
+        }
+
+        void draw(Graphics2D g, int left, int center) {
+            double scale = -100. / Short.MAX_VALUE;
+            for (int x = 0; x < min.length; ++x) {
+                g.drawLine(left + x, center + (int) (max[x] * scale),
+                        left + x, center + (int) (min[x] * scale));
             }
-            
-            var sizer = AffineTransform.getScaleInstance(
-                    500. / len, -100. / Short.MAX_VALUE);
-            var transL = AffineTransform.getTranslateInstance(20, 100);
-            transL.concatenate(sizer);
-            var transR = AffineTransform.getTranslateInstance(20, 300);
-            transR.concatenate(sizer);
-            
-            pathL.transform(transL);
-            pathR.transform(transR);
-            g.draw(pathL);
-            g.draw(pathR);
-            var f = new JFrame("Graph");
-            var lbl = new JLabel(new ImageIcon(image));
-            f.add(lbl);
-            
-            var pnl = new JPanel();
-            var btn = new JButton("Play");
-            btn.addActionListener(al -> {
-                clip.setMicrosecondPosition(0);
-                clip.start();
-            });
-            pnl.add(btn);
-            f.add("North", pnl);
-            
-            var echoGraph = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
-            GeoAcoustics.drawEcho(echoGraph.createGraphics(), echoSq);
-            f.add("South", new JLabel(new ImageIcon(echoGraph)));
-            f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            f.setSize(630, 450);
-            f.setVisible(true);
         }
     }
 }
@@ -0,0 +1,319 @@
+package kis.acoustics;
+
+import static java.lang.Math.sqrt;
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import kis.acoustics.GeoAcoustics.Material;
+import kis.acoustics.GeoAcoustics.Point2D;
+import kis.acoustics.GeoAcoustics.Polygon;
+import kis.acoustics.GeoAcoustics.Rectangle;
+import kis.acoustics.GeoAcoustics.Sphere;
+import kis.acoustics.GeoAcoustics.Surface;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Scene flattened into primitive arrays of triangles for the tracing engine.
+ * Triangles are stored in BVH leaf order.
+ * @author naoki
+ */
+public class PackedScene {
+    static final int BANDS = 6;
+    // vertex, edge1, edge2, unit normal
+    static final int STRIDE = 12;
+
+    final int triangleCount;
+    final double[] triangles;
+    // index to materials for each triangle
+    final int[] material;
+    // index to surfaceNames for each triangle
+    final int[] surface;
+    final Material[] materials;
+    final String[] surfaceNames;
+    // materials.length * BANDS
+    final double[] absorptions;
+    final BVH bvh;
+    // null when the Vector API is not available
+    final PacketKernel kernel;
+
+    /**
+     * Triangle soup before it is ordered by the BVH.
+     * The front side, which rays reflect on, is the one the vertices go counterclockwise.
+     */
+    static class Mesh {
+        double[] triangles = new double[STRIDE * 16];
+        int[] material = new int[16];
+        int[] surface = new int[16];
+        int count;
+        final List<Material> materials = new ArrayList<>();
+        final List<String> surfaceNames = new ArrayList<>();
+
+        int material(Material m) {
+            int idx = materials.indexOf(m);
+            if (idx < 0) {
+                materials.add(m);
+                idx = materials.size() - 1;
+            }
+            return idx;
+        }
+
+        int surface(String name) {
+            int idx = surfaceNames.indexOf(name);
+            if (idx < 0) {
+                surfaceNames.add(name);
+                idx = surfaceNames.size() - 1;
+            }
+            return idx;
+        }
+
+        /** adds the triangle, degenerated one is ignored */
+        void add(double x0, double y0, double z0, double x1, double y1, double z1,
+                double x2, double y2, double z2, int mat, int surf) {
+            double e1x = x1 - x0, e1y = y1 - y0, e1z = z1 - z0;
+            double e2x = x2 - x0, e2y = y2 - y0, e2z = z2 - z0;
+            double nx = e1y * e2z - e1z * e2y;
+            double ny = e1z * e2x - e1x * e2z;
+            double nz = e1x * e2y - e1y * e2x;
+            double len = sqrt(nx * nx + ny * ny + nz * nz);
+            if (len == 0) {
+                return;
+            }
+            if (count == material.length) {
+                triangles = Arrays.copyOf(triangles, count * 2 * STRIDE);
+                material = Arrays.copyOf(material, count * 2);
+                surface = Arrays.copyOf(surface, count * 2);
+            }
+            int o = count * STRIDE;
+            triangles[o] = x0; triangles[o + 1] = y0; triangles[o + 2] = z0;
+            triangles[o + 3] = e1x; triangles[o + 4] = e1y; triangles[o + 5] = e1z;
+            triangles[o + 6] = e2x; triangles[o + 7] = e2y; triangles[o + 8] = e2z;
+            triangles[o + 9] = nx / len; triangles[o + 10] = ny / len; triangles[o + 11] = nz / len;
+            material[count] = mat;
+            surface[count] = surf;
+            ++count;
+        }
+
+        void add(Polygon p, int mat, int surf) {
+            add(p.pos.x, p.pos.y, p.pos.z, p.p1.x, p.p1.y, p.p1.z, p.p3.x, p.p3.y, p.p3.z, mat, surf);
+        }
+
+        /** adds the sphere as triangles of 16 slices and 8 stacks, facing outside */
+        void add(Sphere sp, int mat, int surf) {
+            int slices = 16, stacks = 8;
+            var v = new double[(stacks + 1) * (slices + 1) * 3];
+            for (int i = 0; i <= stacks; ++i) {
+                double theta = Math.PI * i / stacks;
+                for (int j = 0; j <= slices; ++j) {
+                    double phi = 2 * Math.PI * j / slices;
+                    int o = (i * (slices + 1) + j) * 3;
+                    v[o] = sp.pos.x + sp.rad * Math.sin(theta) * Math.cos(phi);
+                    v[o + 1] = sp.pos.y + sp.rad * Math.sin(theta) * Math.sin(phi);
+                    v[o + 2] = sp.pos.z + sp.rad * Math.cos(theta);
+                }
+            }
+            for (int i = 0; i < stacks; ++i) {
+                for (int j = 0; j < slices; ++j) {
+                    int a = (i * (slices + 1) + j) * 3, b = a + (slices + 1) * 3;
+                    int c = b + 3, d = a + 3;
+                    // the one at a pole is degenerated and ignored
+                    add(v[a], v[a + 1], v[a + 2], v[b], v[b + 1], v[b + 2], v[c], v[c + 1], v[c + 2], mat, surf);
+                    add(v[a], v[a + 1], v[a + 2], v[c], v[c + 1], v[c + 2], v[d], v[d + 1], v[d + 2], mat, surf);
+                }
+            }
+        }
+    }
+
+    PackedScene(List<Surface> surfaces) {
+        this(mesh(surfaces));
+    }
+
+    private static Mesh mesh(List<Surface> surfaces) {
+        var mesh = new Mesh();
+        for (int i = 0; i < surfaces.size(); ++i) {
+            var s = surfaces.get(i);
+            int mat = mesh.material(s.material);
+            int surf = mesh.surface(s.getClass().getSimpleName() + i);
+            if (s instanceof Rectangle) {
+                mesh.add(((Rectangle) s).p1, mat, surf);
+                mesh.add(((Rectangle) s).p2, mat, surf);
+            } else if (s instanceof Polygon) {
+                mesh.add((Polygon) s, mat, surf);
+            } else if (s instanceof Sphere) {
+                mesh.add((Sphere) s, mat, surf);
+            } else {
+                throw new IllegalArgumentException("unknown surface: " + s.getClass().getSimpleName());
+            }
+        }
+        return mesh;
+    }
+
+    PackedScene(Mesh mesh) {
+        int n = mesh.count;
+        var boxes = new double[n * 6];
+        for (int i = 0; i < n; ++i) {
+            int o = i * STRIDE;
+            for (int a = 0; a < 3; ++a) {
+                double v0 = mesh.triangles[o + a];
+                double v1 = v0 + mesh.triangles[o + 3 + a];
+                double v2 = v0 + mesh.triangles[o + 6 + a];
+                boxes[i * 6 + a] = Math.min(v0, Math.min(v1, v2));
+                boxes[i * 6 + 3 + a] = Math.max(v0, Math.max(v1, v2));
+            }
+        }
+        bvh = new BVH(boxes);
+
+        triangleCount = n;
+        triangles = new double[n * STRIDE];
+        material = new int[n];
+        surface = new int[n];
+        for (int i = 0; i < n; ++i) {
+            int src = bvh.order[i];
+            System.arraycopy(mesh.triangles, src * STRIDE, triangles, i * STRIDE, STRIDE);
+            material[i] = mesh.material[src];
+            surface[i] = mesh.surface[src];
+        }
+        materials = mesh.materials.toArray(Material[]::new);
+        surfaceNames = mesh.surfaceNames.toArray(String[]::new);
+        absorptions = absorptions(materials);
+        kernel = PacketKernel.load(this);
+    }
+
+    /** scene which is already ordered, read from a compiled file */
+    PackedScene(double[] triangles, int[] material, int[] surface,
+            Material[] materials, String[] surfaceNames, BVH bvh) {
+        this.triangleCount = material.length;
+        this.triangles = triangles;
+        this.material = material;
+        this.surface = surface;
+        this.materials = materials;
+        this.surfaceNames = surfaceNames;
+        this.absorptions = absorptions(materials);
+        this.bvh = bvh;
+        this.kernel = PacketKernel.load(this);
+    }
+
+    /** same geometry with the materials of the given names replaced */
+    PackedScene withMaterials(Map<String, Material> replace) {
+        var mats = materials.clone();
+        for (int m = 0; m < mats.length; ++m) {
+            mats[m] = replace.getOrDefault(mats[m].name, mats[m]);
+        }
+        return new PackedScene(triangles, material, surface, mats, surfaceNames, bvh);
+    }
+
+    private static double[] absorptions(Material[] materials) {
+        var absorptions = new double[materials.length * BANDS];
+        for (int m = 0; m < materials.length; ++m) {
+            System.arraycopy(materials[m].absorptions, 0, absorptions, m * BANDS, BANDS);
+        }
+        return absorptions;
+    }
+
+    void draw(Graphics2D g, Function<Vec, Point2D> t) {
+        for (int i = 0; i < triangleCount; ++i) {
+            int o = i * STRIDE;
+            var p0 = t.apply(new Vec(triangles[o], triangles[o + 1], triangles[o + 2]));
+            var p1 = t.apply(new Vec(triangles[o] + triangles[o + 3],
+                    triangles[o + 1] + triangles[o + 4], triangles[o + 2] + triangles[o + 5]));
+            var p2 = t.apply(new Vec(triangles[o] + triangles[o + 6],
+                    triangles[o + 1] + triangles[o + 7], triangles[o + 2] + triangles[o + 8]));
+            g.drawLine((int) p0.getX(), (int) p0.getY(), (int) p1.getX(), (int) p1.getY());
+            g.drawLine((int) p1.getX(), (int) p1.getY(), (int) p2.getX(), (int) p2.getY());
+            g.drawLine((int) p2.getX(), (int) p2.getY(), (int) p0.getX(), (int) p0.getY());
+        }
+    }
+
+    /** Traversal state for one thread. */
+    Query query() {
+        return new Query();
+    }
+
+    class Query {
+        private final int[] stack = new int[bvh.stackSize()];
+        private final double[] packetT = new double[1];
+        /** distance to the last hit */
+        double t;
+        /** triangle of the last hit */
+        int hit;
+        /** nodes visited and triangles tested, for {@link TraceStats} */
+        long nodes, tests;
+
+        /** finds the closest triangle, same facing rule as Polygon.intersect */
+        boolean closest(double ox, double oy, double oz, double dx, double dy, double dz) {
+            hit = -1;
+            if (triangleCount == 0) {
+                return false;
+            }
+            final var tri = triangles;
+            final var b = bvh;
+            double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+            double best = Double.POSITIVE_INFINITY;
+            int sp = 0;
+            stack[sp++] = 0;
+            while (sp > 0) {
+                int node = stack[--sp];
+                ++nodes;
+                if (!b.hitBox(node, ox, oy, oz, ix, iy, iz, best)) {
+                    continue;
+                }
+                int cnt = b.count[node];
+                tests += cnt;
+                if (cnt > 0 && kernel != null) {
+                    int h = kernel.leaf(ox, oy, oz, dx, dy, dz, b.offset[node], cnt, best, packetT);
+                    if (h >= 0) {
+                        best = packetT[0];
+                        hit = h;
+                    }
+                    continue;
+                }
+                if (cnt > 0) {
+                    for (int i = b.offset[node], end = i + cnt; i < end; ++i) {
+                        int o = i * STRIDE;
+                        double e1x = tri[o + 3], e1y = tri[o + 4], e1z = tri[o + 5];
+                        double e2x = tri[o + 6], e2y = tri[o + 7], e2z = tri[o + 8];
+                        // Moller-Trumbore
+                        double px = dy * e2z - dz * e2y;
+                        double py = dz * e2x - dx * e2z;
+                        double pz = dx * e2y - dy * e2x;
+                        double det = e1x * px + e1y * py + e1z * pz;
+                        if (det <= 0) {
+                            continue;
+                        }
+                        double sx = ox - tri[o], sy = oy - tri[o + 1], sz = oz - tri[o + 2];
+                        // barycentric tests are done before the division
+                        double u = sx * px + sy * py + sz * pz;
+                        if (u < 0 || u > det) {
+                            continue;
+                        }
+                        double qx = sy * e1z - sz * e1y;
+                        double qy = sz * e1x - sx * e1z;
+                        double qz = sx * e1y - sy * e1x;
+                        double v = dx * qx + dy * qy + dz * qz;
+                        if (v < 0 || u + v > det) {
+                            continue;
+                        }
+                        double d = (e2x * qx + e2y * qy + e2z * qz) / det;
+                        if (d > 0 && d < best) {
+                            best = d;
+                            hit = i;
+                        }
+                    }
+                    continue;
+                }
+                boolean negative = b.axis[node] == 0 ? dx < 0 : b.axis[node] == 1 ? dy < 0 : dz < 0;
+                if (negative) {
+                    stack[sp++] = node + 1;
+                    stack[sp++] = b.offset[node];
+                } else {
+                    stack[sp++] = b.offset[node];
+                    stack[sp++] = node + 1;
+                }
+            }
+            t = best;
+            return hit >= 0;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package kis.acoustics;
+
+/**
+ * SIMD kernels of the tracing engine.
+ * The implementation with the JDK Vector API is compiled only on JDK 17 or later
+ * and used with {@code -Dacoustics.simd=true} when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}. It is no faster than the scalar code so far.
+ * Otherwise {@link #load} returns null and the scalar code in the engine is used.
+ * @author naoki
+ */
+interface PacketKernel {
+    /**
+     * closest front facing triangle of a BVH leaf, same rule as {@link PackedScene.Query#closest}
+     * @param best hits farther than this are ignored
+     * @param t receives the distance in t[0]
+     * @return the triangle, or -1 if none is nearer than best
+     */
+    int leaf(double ox, double oy, double oz, double dx, double dy, double dz,
+            int offset, int count, double best, double[] t);
+
+    /**
+     * multiplies the band energies energy[offset ..] by 1 - absorption[absOffset ..]
+     * @return the largest energy after that
+     */
+    double absorb(double[] energy, int offset, double[] absorption, int absOffset);
+
+    static PacketKernel load(PackedScene scene) {
+        if (!Boolean.parseBoolean(System.getProperty("acoustics.simd", "false"))) {
+            return null;
+        }
+        try {
+            return (PacketKernel) Class.forName("kis.acoustics.VectorPacketKernel")
+                    .getDeclaredConstructor(PackedScene.class)
+                    .newInstance(scene);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // built on JDK 11, or jdk.incubator.vector is not added
+            return null;
+        }
+    }
+}
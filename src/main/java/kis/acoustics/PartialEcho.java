@@ -0,0 +1,106 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Histogram of a shard of a simulation, with the fixed point sums so that shards are merged exactly.
+ * <pre>
+ * header   int magic, int version, long seed, int shard, int shards, int seconds, long rays, long count
+ * payload  the sums of the bands in order, long
+ * </pre>
+ * @author naoki
+ */
+public class PartialEcho {
+    static final int MAGIC = 0x45504341; // "ACPE"
+    static final int VERSION = 1;
+    private static final int HEADER = 44;
+
+    final long seed;
+    final int shard;
+    final int shards;
+    final EchoHistogram hist;
+
+    PartialEcho(long seed, int shard, int shards, EchoHistogram hist) {
+        this.seed = seed;
+        this.shard = shard;
+        this.shards = shards;
+        this.hist = hist;
+    }
+
+    void write(Path path) throws IOException {
+        var buf = ByteBuffer.allocate(HEADER + hist.sumBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putLong(seed).putInt(shard).putInt(shards)
+                .putInt(hist.sum[0].length / EchoHistogram.HZ[0]).putLong(hist.rays).putLong(hist.count);
+        hist.putSums(buf);
+        buf.flip();
+        // write aside and move, so that the merge never sees a half written shard
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static PartialEcho read(Path path) throws IOException {
+        var buf = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC) {
+            throw new IOException(path + " is not a partial echo file");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported partial echo version " + version + ": " + path);
+        }
+        long seed = buf.getLong();
+        int shard = buf.getInt();
+        int shards = buf.getInt();
+        int seconds = buf.getInt();
+        var hist = new EchoHistogram(seconds);
+        hist.rays = buf.getLong();
+        hist.count = buf.getLong();
+        if (buf.remaining() != hist.sumBytes()) {
+            throw new IOException("broken partial echo file: " + path);
+        }
+        hist.getSums(buf);
+        return new PartialEcho(seed, shard, shards, hist);
+    }
+
+    /**
+     * sum of the shards of one simulation, not resolved.
+     * every shard should be there once with the same seed.
+     */
+    static EchoHistogram merge(PartialEcho... parts) {
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("no shard to merge");
+        }
+        var first = parts[0];
+        var seen = new boolean[first.shards];
+        EchoHistogram total = null;
+        for (var p : parts) {
+            if (p.seed != first.seed || p.shards != first.shards
+                    || p.hist.sum[0].length != first.hist.sum[0].length) {
+                throw new IllegalArgumentException("shards of different simulations");
+            }
+            if (seen[p.shard]) {
+                throw new IllegalArgumentException("shard " + p.shard + " is given twice");
+            }
+            seen[p.shard] = true;
+            total = total == null ? p.hist : total.merge(p.hist);
+        }
+        for (int i = 0; i < seen.length; ++i) {
+            if (!seen[i]) {
+                throw new IllegalArgumentException("shard " + i + " of " + seen.length + " is missing");
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,106 @@
+package kis.acoustics;
+
+import java.util.Arrays;
+
+/**
+ * Uniformly partitioned overlap-save convolution.
+ * The kernel is cut into partitions of the block size whose spectra are computed once,
+ * so one convolver can be shared by bands and channels; each stream keeps its own State.
+ * @author naoki
+ */
+public class PartitionedConvolver {
+    final int block;
+    final int partitions;
+    final FFT fft;
+    // spectrum of each kernel partition
+    private final double[][] kernelRe, kernelIm;
+
+    /** @param block samples processed at once, power of 2 */
+    PartitionedConvolver(double[] kernel, int block) {
+        this.block = block;
+        this.partitions = Math.max(1, (kernel.length + block - 1) / block);
+        this.fft = new FFT(block * 2);
+        kernelRe = new double[partitions][];
+        kernelIm = new double[partitions][];
+        for (int p = 0; p < partitions; ++p) {
+            var re = new double[block * 2];
+            var im = new double[block * 2];
+            int from = p * block;
+            System.arraycopy(kernel, Math.min(from, kernel.length), re, 0,
+                    Math.max(0, Math.min(block, kernel.length - from)));
+            fft.transform(re, im);
+            kernelRe[p] = re;
+            kernelIm[p] = im;
+        }
+    }
+
+    /** block size that keeps the partition count small for the kernel */
+    static int blockFor(int kernelLength) {
+        return Math.max(64, Math.min(4096, Integer.highestOneBit(Math.max(1, kernelLength - 1)) * 2));
+    }
+
+    State newState() {
+        return new State();
+    }
+
+    /** Streaming state for one signal. */
+    class State {
+        // previous block and current block
+        private final double[] window = new double[block * 2];
+        // frequency domain delay line of the input spectra
+        private final double[][] fdlRe = new double[partitions][block * 2];
+        private final double[][] fdlIm = new double[partitions][block * 2];
+        private final double[] accRe = new double[block * 2];
+        private final double[] accIm = new double[block * 2];
+        private int head;
+
+        /** samples of a block */
+        int block() {
+            return block;
+        }
+
+        /** convolves one block, in[inOff .. inOff + block) to out[outOff .. outOff + block) */
+        void process(float[] in, int inOff, float[] out, int outOff) {
+            int n = block * 2;
+            System.arraycopy(window, block, window, 0, block);
+            for (int i = 0; i < block; ++i) {
+                window[block + i] = in[inOff + i];
+            }
+            head = (head + partitions - 1) % partitions;
+            var xr = fdlRe[head];
+            var xi = fdlIm[head];
+            System.arraycopy(window, 0, xr, 0, n);
+            Arrays.fill(xi, 0);
+            fft.transform(xr, xi);
+
+            Arrays.fill(accRe, 0);
+            Arrays.fill(accIm, 0);
+            for (int p = 0; p < partitions; ++p) {
+                var sr = fdlRe[(head + p) % partitions];
+                var si = fdlIm[(head + p) % partitions];
+                var hr = kernelRe[p];
+                var hi = kernelIm[p];
+                for (int k = 0; k < n; ++k) {
+                    accRe[k] += sr[k] * hr[k] - si[k] * hi[k];
+                    accIm[k] += sr[k] * hi[k] + si[k] * hr[k];
+                }
+            }
+            fft.inverse(accRe, accIm);
+            for (int i = 0; i < block; ++i) {
+                out[outOff + i] = (float) accRe[block + i];
+            }
+        }
+    }
+
+    /** convolves the whole signal, the result has the same length as the input */
+    float[] convolve(float[] signal) {
+        var state = newState();
+        int blocks = (signal.length + block - 1) / block;
+        var in = Arrays.copyOf(signal, blocks * block);
+        var out = new float[blocks * block];
+        for (int b = 0; b < blocks; ++b) {
+            state.process(in, b * block, out, b * block);
+        }
+        return Arrays.copyOf(out, signal.length);
+    }
+}
@@ -0,0 +1,148 @@
+package kis.acoustics;
+
+import java.util.Arrays;
+import static kis.acoustics.PackedScene.BANDS;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Paths of the traced arrivals, to get the echo for other materials on the same geometry without tracing.
+ * <p>
+ * Reflections are kept as a tree, a node is the surface hit and the node of the previous reflection,
+ * so rays share the nodes of their common history and a reflection is stored once.
+ * Reflections which no arrival comes through are dropped when the paths of a worker are merged.
+ * An arrival keeps its receiver, length, last node and the weight that doesn't depend on materials,
+ * which is the geometric weight with the Russian roulette and splitting factors.
+ * The energy of a band is then the weight times the product of (1 - absorption)^2 along the path.
+ * <p>
+ * Russian roulette and splitting made their choices with the recorded materials,
+ * so the result for very different materials gets noisier, though its expectation is right.
+ * @author naoki
+ */
+public class PathCache {
+    Vec source;
+    Receivers receivers;
+    int seconds;
+    int imageSourceOrder;
+    int triangleCount;
+    long rays;
+
+    // reflection tree, parent is -1 for the first reflection
+    private int[] parent = new int[1024];
+    private int[] surface = new int[1024];
+    private int nodes;
+
+    private int[] receiver = new int[1024];
+    private int[] node = new int[1024];
+    private float[] distance = new float[1024];
+    private double[] weight = new double[1024];
+    private int arrivals;
+
+    /** @return the new node */
+    int node(int parent, int surface) {
+        if (nodes == this.parent.length) {
+            this.parent = Arrays.copyOf(this.parent, nodes * 2);
+            this.surface = Arrays.copyOf(this.surface, nodes * 2);
+        }
+        this.parent[nodes] = parent;
+        this.surface[nodes] = surface;
+        return nodes++;
+    }
+
+    /** @param node last reflection of the path, -1 for the direct sound */
+    void arrival(int receiver, double distance, int node, double weight) {
+        if (arrivals == this.receiver.length) {
+            this.receiver = Arrays.copyOf(this.receiver, arrivals * 2);
+            this.node = Arrays.copyOf(this.node, arrivals * 2);
+            this.distance = Arrays.copyOf(this.distance, arrivals * 2);
+            this.weight = Arrays.copyOf(this.weight, arrivals * 2);
+        }
+        this.receiver[arrivals] = receiver;
+        this.node[arrivals] = node;
+        this.distance[arrivals] = (float) distance;
+        this.weight[arrivals] = weight;
+        ++arrivals;
+    }
+
+    /** appends the paths of a worker, only the nodes on the paths of its arrivals are kept */
+    synchronized void merge(PathCache other) {
+        // new index + 1 of the nodes, -1 while only marked
+        var index = new int[other.nodes];
+        for (int i = 0; i < other.arrivals; ++i) {
+            for (int n = other.node[i]; n >= 0 && index[n] == 0; n = other.parent[n]) {
+                index[n] = -1;
+            }
+        }
+        for (int n = 0; n < other.nodes; ++n) {
+            if (index[n] != 0) {
+                int p = other.parent[n];
+                index[n] = node(p < 0 ? -1 : index[p] - 1, other.surface[n]) + 1;
+            }
+        }
+        for (int i = 0; i < other.arrivals; ++i) {
+            int n = other.node[i];
+            arrival(other.receiver[i], other.distance[i], n < 0 ? -1 : index[n] - 1, other.weight[i]);
+        }
+    }
+
+    int arrivals() {
+        return arrivals;
+    }
+
+    /** bytes used by the paths */
+    long size() {
+        return nodes * 8L + arrivals * 20L;
+    }
+
+    /**
+     * echo of the recorded arrivals with the materials of the scene, without image sources.
+     * the scene should have the same geometry as the recorded one.
+     */
+    EchoHistogram[] histograms(PackedScene scene) {
+        var amp = amplitudes(scene);
+        var hists = EchoHistogram.of(receivers.size(), seconds);
+        for (int i = 0; i < arrivals; ++i) {
+            hists[receiver[i]].add(distance[i], amp, (node[i] + 1) * BANDS, weight[i]);
+        }
+        for (var h : hists) {
+            h.rays = rays;
+        }
+        return hists;
+    }
+
+    /** recorded arrivals one by one with the materials of the scene, not sorted, like {@link #histograms} */
+    Arrivals[] arrivals(PackedScene scene) {
+        var amp = amplitudes(scene);
+        var result = new Arrivals[receivers.size()];
+        for (int r = 0; r < result.length; ++r) {
+            result[r] = new Arrivals();
+            result[r].rays = rays;
+        }
+        for (int i = 0; i < arrivals; ++i) {
+            result[receiver[i]].add(distance[i], amp, (node[i] + 1) * BANDS, weight[i]);
+        }
+        return result;
+    }
+
+    /** amplitude of the bands after each node, the first BANDS are 1 for no reflection */
+    private double[] amplitudes(PackedScene scene) {
+        if (scene.triangleCount != triangleCount) {
+            throw new IllegalArgumentException("the scene is not the recorded one");
+        }
+        // absorption of each surface
+        var absorption = new double[scene.surfaceNames.length * BANDS];
+        for (int t = 0; t < scene.triangleCount; ++t) {
+            System.arraycopy(scene.absorptions, scene.material[t] * BANDS,
+                    absorption, scene.surface[t] * BANDS, BANDS);
+        }
+        // amplitude after each node, parents come before their children
+        var amp = new double[(nodes + 1) * BANDS];
+        Arrays.fill(amp, 0, BANDS, 1);
+        for (int n = 0; n < nodes; ++n) {
+            int p = (parent[n] + 1) * BANDS, a = surface[n] * BANDS;
+            for (int b = 0; b < BANDS; ++b) {
+                amp[(n + 1) * BANDS + b] = amp[p + b] * (1 - absorption[a + b]);
+            }
+        }
+        return amp;
+    }
+}
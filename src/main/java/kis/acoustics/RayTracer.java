@@ -0,0 +1,733 @@
+package kis.acoustics;
+
+import static java.lang.Math.sqrt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import static kis.acoustics.PackedScene.BANDS;
+import static kis.acoustics.PackedScene.STRIDE;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Tracing engine working on primitive buffers.
+ * Ray state is kept as structure of arrays in a worker, so no object is created while tracing.
+ * @author naoki
+ */
+public class RayTracer {
+    /** amplitude of an emitted ray in every band */
+    private static final double[] UNIT = {1, 1, 1, 1, 1, 1};
+    /** rays with one random stream */
+    static final int BLOCK = 1024;
+    /** time window for splitting */
+    static final double WINDOW_SECONDS = (double) Convergence.WINDOW / EchoHistogram.HZ[0];
+    final PackedScene scene;
+    /** rays are traced up to this distance or the end of the histogram */
+    double maxDistance = Double.POSITIVE_INFINITY;
+    /** rays below this amplitude play Russian roulette */
+    double threshold = 0.01;
+    /** ratio of the reflected energy scattered as Lambert */
+    double scattering = 0;
+    /**
+     * the scattered energy reaches the receivers by diffuse rain, a shadow ray from every reflection.
+     * the ray scattered there doesn't hit the receivers on its next segment, so the energy is counted once.
+     * the direct sound is added the same way from the source.
+     */
+    boolean diffuseRain = true;
+    /**
+     * a ray is split in two when it enters a time window which fewer than this ratio of the emitted rays
+     * have reached in the task. 0 for no splitting, which only matters with scattering.
+     */
+    double splitRatio = 0;
+    /**
+     * specular reflections up to this order come from image sources, -1 to trace everything.
+     * paths scattered at some reflection are traced at every order
+     */
+    int imageSourceOrder = -1;
+    /** seed of the rays, the result is the same for any thread count. null for a new seed every time */
+    Long seed;
+    private final Map<List<Double>, ImageSources> imageSourceCache = new ConcurrentHashMap<>();
+
+    RayTracer(PackedScene scene) {
+        this.scene = scene;
+    }
+
+    interface ArrivalSink {
+        /**
+         * energy of the ray is energy[offset] .. energy[offset + BANDS - 1],
+         * and the arrival stands for weight of its squared amplitude
+         */
+        void arrive(int receiver, double distance, double[] energy, int offset, double weight);
+    }
+
+    /**
+     * traces samples rays on the pool of the caller
+     * @return histogram for each receiver
+     */
+    EchoHistogram[] simulate(Vec source, Receivers receivers, int samples, int seconds) {
+        return simulate(source, receivers, samples, seconds, (PathCache) null);
+    }
+
+    /**
+     * traces samples rays and records the paths of the arrivals into paths,
+     * see {@link #reweight(PathCache)}
+     */
+    EchoHistogram[] simulate(Vec source, Receivers receivers, int samples, int seconds, PathCache paths) {
+        long base = baseSeed();
+        if (paths != null) {
+            paths.source = source;
+            paths.receivers = receivers;
+            paths.seconds = seconds;
+            paths.imageSourceOrder = imageSourceOrder;
+            paths.triangleCount = scene.triangleCount;
+            paths.rays = samples;
+        }
+        var hists = trace(source, receivers, base, 0, samples, seconds, paths, null);
+        for (var h : hists) {
+            h.rays = samples;
+        }
+        addImageSources(hists, source, receivers, samples);
+        return EchoHistogram.resolve(hists);
+    }
+
+    /**
+     * traces samples rays, publishing every block to live so that the echo can be watched while tracing.
+     * when live is cancelled, the tracing stops and the echo of the rays traced so far is returned.
+     */
+    EchoHistogram[] simulate(Vec source, Receivers receivers, int samples, int seconds, LiveEcho live) {
+        long base = baseSeed();
+        live.start(source, receivers, seconds);
+        trace(source, receivers, base, 0, samples, seconds, null, live);
+        return estimate(live);
+    }
+
+    /**
+     * traces samples rays like {@link #simulate(Vec, Receivers, int, int, LiveEcho)},
+     * saving the rays traced so far to the checkpoint every its interval.
+     * when the checkpoint is of this simulation, the tracing resumes from it with its seed,
+     * which must be the seed of the tracer if it is set, and the echo is the same as the one without stopping. samples can be more than in the stopped run.
+     * the checkpoint is deleted when all the rays are traced, and kept when live is cancelled.
+     */
+    EchoHistogram[] simulate(Vec source, Receivers receivers, int samples, int seconds,
+            LiveEcho live, Checkpoint checkpoint) throws IOException {
+        return simulate(source, receivers, samples, seconds, live, checkpoint, null);
+    }
+
+    /**
+     * traces with the checkpoint and records the paths of the arrivals into paths if not null.
+     * the paths are of the rays traced in this run, which are fewer than the echo has when resumed.
+     */
+    EchoHistogram[] simulate(Vec source, Receivers receivers, int samples, int seconds,
+            LiveEcho live, Checkpoint checkpoint, PathCache paths) throws IOException {
+        var saved = checkpoint.load(s -> key(source, receivers, seconds, s), seed, receivers.size(), seconds);
+        if (saved != null && saved.rays > samples) {
+            throw new IllegalArgumentException("the checkpoint has " + saved.rays + " rays, more than " + samples);
+        }
+        long base = saved != null ? saved.seed : baseSeed();
+        var key = key(source, receivers, seconds, base);
+        live.start(source, receivers, seconds);
+        long rays = 0;
+        if (saved != null) {
+            live.publish(saved.hists, saved.rays);
+            rays = saved.rays;
+        }
+        long resumed = rays;
+        // the pool waits for the slowest task at the end of a chunk, so a chunk has many blocks for a task
+        var pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+        long chunk = BLOCK * 64L * pool.getParallelism();
+        while (rays < samples) {
+            long n = Math.min(chunk, samples - rays);
+            trace(source, receivers, base, rays, n, seconds, paths, live);
+            if (live.isCancelled()) {
+                // blocks of the chunk may be skipped, the checkpoint before it is kept
+                break;
+            }
+            rays += n;
+            if (rays < samples && checkpoint.due()) {
+                checkpoint.save(key, base, live.snapshot());
+            }
+        }
+        if (rays == samples) {
+            checkpoint.delete();
+        }
+        if (paths != null) {
+            paths.source = source;
+            paths.receivers = receivers;
+            paths.seconds = seconds;
+            paths.imageSourceOrder = imageSourceOrder;
+            paths.triangleCount = scene.triangleCount;
+            // the blocks published are the ones recorded
+            paths.rays = live.rays() - resumed;
+        }
+        return estimate(live);
+    }
+
+    /** SHA-256 of what the traced rays depend on, other than the count */
+    private byte[] key(Vec source, Receivers receivers, int seconds, long seed) {
+        var md = EchoCache.sha256();
+        var buf = ByteBuffer.allocate(8 * Math.max(scene.triangles.length, receivers.packed.length));
+        for (var values : List.of(scene.triangles, scene.absorptions, receivers.packed)) {
+            buf.clear();
+            buf.asDoubleBuffer().put(values);
+            md.update(buf.array(), 0, values.length * 8);
+        }
+        buf.clear();
+        buf.asIntBuffer().put(scene.material);
+        md.update(buf.array(), 0, scene.material.length * 4);
+        buf = ByteBuffer.allocate(12 * 8);
+        buf.putDouble(source.x).putDouble(source.y).putDouble(source.z).putInt(seconds)
+                .putDouble(maxDistance).putDouble(threshold).putDouble(scattering).putInt(diffuseRain ? 1 : 0)
+                .putDouble(splitRatio).putInt(imageSourceOrder).putLong(seed);
+        md.update(buf.array(), 0, buf.position());
+        return md.digest();
+    }
+
+    /** echo of the rays published to live, with the image sources for them */
+    EchoHistogram[] estimate(LiveEcho live) {
+        var hists = live.snapshot();
+        if (hists == null) {
+            return null;
+        }
+        addImageSources(hists, live.source, live.receivers, hists[0].rays);
+        return EchoHistogram.resolve(hists);
+    }
+
+    /**
+     * traces rounds of rays until the echo of every receiver converges,
+     * or until maxRays rays or maxMillis has passed.
+     * @param tolerance relative error at 95% confidence of the energy in every band and window
+     *                  within range dB of the loudest window, see {@link Convergence}
+     * @param round rays in a round, rounded up to whole blocks
+     */
+    EchoHistogram[] simulate(Vec source, Receivers receivers, int seconds,
+            double tolerance, double range, int round, long maxRays, long maxMillis) {
+        var start = System.currentTimeMillis();
+        long base = baseSeed();
+        round = (round + BLOCK - 1) / BLOCK * BLOCK;
+        var conv = new Convergence(receivers.size(), seconds);
+        EchoHistogram[] hists = null;
+        long rays = 0;
+        double error;
+        if (maxRays < 1) {
+            throw new IllegalArgumentException("maxRays should be positive: " + maxRays);
+        }
+        do {
+            // a round cut by maxRays is the last one, the rounds before it have the same whole blocks
+            long n = Math.min(round, maxRays - rays);
+            var r = trace(source, receivers, base, rays, n, seconds, null, null);
+            conv.add(EchoHistogram.resolve(r));
+            hists = hists == null ? r : EchoHistogram.merge(hists, r);
+            rays += n;
+            error = conv.error(range);
+        } while (error > tolerance && rays < maxRays
+                && System.currentTimeMillis() - start < maxMillis);
+        for (var h : hists) {
+            h.rays = rays;
+        }
+        addImageSources(hists, source, receivers, rays);
+        return EchoHistogram.resolve(hists);
+    }
+
+    /**
+     * echo from the recorded paths with the materials of this scene, which has the geometry of the recorded one.
+     * the image sources are computed again, with the order of the recording.
+     */
+    EchoHistogram[] reweight(PathCache paths) {
+        if (paths.imageSourceOrder != imageSourceOrder) {
+            throw new IllegalArgumentException("paths are recorded with image source order " + paths.imageSourceOrder);
+        }
+        var hists = paths.histograms(scene);
+        addImageSources(hists, paths.source, paths.receivers, paths.rays);
+        return EchoHistogram.resolve(hists);
+    }
+
+    /**
+     * traces the blocks from .. to - 1 of a simulation of samples rays with the seed, as one shard of it.
+     * the histograms are neither resolved nor have image sources,
+     * the merged shards are the same as the simulation with {@link #finish}.
+     */
+    EchoHistogram[] shard(Vec source, Receivers receivers, long seed, int samples, long from, long to, int seconds) {
+        long first = Math.min(samples, from * BLOCK);
+        long count = Math.min(samples, to * BLOCK) - first;
+        var hists = trace(source, receivers, seed, first, count, seconds, null, null);
+        for (var h : hists) {
+            h.rays = count;
+        }
+        return hists;
+    }
+
+    /** adds the image sources to the merged shards and resolves them */
+    EchoHistogram[] finish(EchoHistogram[] hists, Vec source, Receivers receivers) {
+        addImageSources(hists, source, receivers, hists[0].rays);
+        return EchoHistogram.resolve(hists);
+    }
+
+    /**
+     * arrivals of the recorded paths with the materials of this scene and of the image sources,
+     * sorted by time for each receiver, see {@link #reweight(PathCache)}
+     */
+    Arrivals[] arrivals(PathCache paths) {
+        if (paths.imageSourceOrder != imageSourceOrder) {
+            throw new IllegalArgumentException("paths are recorded with image source order " + paths.imageSourceOrder);
+        }
+        var result = paths.arrivals(scene);
+        if (imageSourceOrder >= 0) {
+            var ism = imageSources(paths.source);
+            IntStream.range(0, result.length).parallel().forEach(i ->
+                    ism.addTo((r, d, e, o, w) -> result[r].add(d, e, o, w), i,
+                            paths.receivers.spheres.get(i), paths.rays, maxDistance, scattering));
+        }
+        for (var a : result) {
+            a.sort();
+        }
+        return result;
+    }
+
+    private long baseSeed() {
+        return seed != null ? seed : new SplittableRandom().nextLong();
+    }
+
+    /**
+     * traces rays first .. first + count - 1.
+     * rays are cut into blocks with their own random stream, and the tasks take whole blocks,
+     * so the histogram does not depend on how many tasks or threads there are.
+     * @param paths records the arrivals if not null
+     * @param live receives every block instead of the returned histograms if not null
+     */
+    private EchoHistogram[] trace(Vec source, Receivers receivers, long base, long first, long count, int seconds,
+            PathCache paths, LiveEcho live) {
+        long blocks = (count + BLOCK - 1) / BLOCK;
+        var pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+        int tasks = (int) Math.max(1, Math.min(blocks, pool.getParallelism() * 4L));
+        var event = new TraceStats.TraceEvent();
+        event.begin();
+        var hists = IntStream.range(0, tasks).parallel().collect(
+                () -> EchoHistogram.of(receivers.size(), seconds),
+                (hs, task) -> {
+                    long start = System.nanoTime();
+                    var worker = worker(seconds);
+                    var local = paths == null ? null : new PathCache();
+                    ArrivalSink sink = (r, d, e, o, w) -> hs[r].add(d, e, o, w);
+                    for (long b = blocks * task / tasks, end = blocks * (task + 1) / tasks; b < end; ++b) {
+                        if (live != null && live.isCancelled()) {
+                            break;
+                        }
+                        int n = (int) Math.min(BLOCK, count - b * BLOCK);
+                        worker.paths = local == null ? null : new PathCache();
+                        worker.trace(source, receivers, n, random(base, first / BLOCK + b), sink);
+                        if (local != null) {
+                            // drops the reflections of the block which didn't reach a receiver
+                            local.merge(worker.paths);
+                        }
+                        if (live != null) {
+                            live.publish(hs, n);
+                        }
+                    }
+                    if (paths != null) {
+                        paths.merge(local);
+                    }
+                    TraceStats.TOTAL.add(worker.counter, worker.query, start);
+                },
+                EchoHistogram::merge);
+        event.rays = count;
+        event.receivers = receivers.size();
+        event.tasks = tasks;
+        event.commit();
+        return hists;
+    }
+
+    /** random stream of a block, independent of other blocks */
+    static SplittableRandom random(long seed, long block) {
+        return new SplittableRandom(mix(seed ^ mix(block + 0x9e3779b97f4a7c15L)));
+    }
+
+    /** finalizer of SplitMix64 */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private void addImageSources(EchoHistogram[] hists, Vec source, Receivers receivers, long rays) {
+        if (imageSourceOrder < 0) {
+            return;
+        }
+        var ism = imageSources(source);
+        IntStream.range(0, receivers.size()).parallel().forEach(i ->
+                ism.addTo(hists[i], receivers.spheres.get(i), rays, maxDistance, scattering));
+    }
+
+    /** image source tree for the source, cached while the order is not changed */
+    ImageSources imageSources(Vec source) {
+        return imageSourceCache.computeIfAbsent(
+                List.of(source.x, source.y, source.z, (double) imageSourceOrder),
+                __ -> new ImageSources(scene, source, imageSourceOrder));
+    }
+
+    /** Ray buffers for one thread, rays are traced up to seconds */
+    Worker worker(int seconds) {
+        return new Worker(Math.min(maxDistance, seconds * EchoHistogram.SOUND_SPEED));
+    }
+
+    /**
+     * Traces rays depth first.
+     * A ray is bounced until it dies before the next one is emitted, and a ray split off waits in the stack,
+     * so the buffers hold the rays of one path. A ray splits at most once a time window,
+     * so the stack is bounded by the windows and doesn't depend on the count of rays or reflections.
+     */
+    class Worker {
+        final double limit;
+        double[] ox, oy, oz, dx, dy, dz, distance;
+        // reflection count
+        int[] order;
+        // time window the ray is in, for splitting
+        int[] window;
+        // the last reflection was scattered
+        boolean[] diffuse;
+        // some reflection was scattered, the path is not one of the image sources
+        boolean[] scattered;
+        // with paths, the last node of the ray and its amplitude factor which doesn't depend on materials
+        int[] path;
+        double[] gain;
+        // ray major, BANDS per ray
+        double[] energy;
+        // rays in the stack, the last one is traced
+        int size;
+        // rays which reached each time window
+        int[] visits;
+        int emitted;
+        final PackedScene.Query query = scene.query();
+        final TraceStats.Counter counter = new TraceStats.Counter();
+        Receivers receivers;
+        Receivers.Query receiverQuery;
+        /** records the arrivals if not null */
+        PathCache paths;
+        // ray being bounced, -1 for the direct sound
+        private int current;
+        boolean rain;
+        SplittableRandom rand;
+        // last random unit vector
+        private double ux, uy, uz;
+
+        Worker(double limit) {
+            int capacity = 16;
+            this.limit = limit;
+            ox = new double[capacity];
+            oy = new double[capacity];
+            oz = new double[capacity];
+            dx = new double[capacity];
+            dy = new double[capacity];
+            dz = new double[capacity];
+            distance = new double[capacity];
+            order = new int[capacity];
+            window = new int[capacity];
+            diffuse = new boolean[capacity];
+            scattered = new boolean[capacity];
+            path = new int[capacity];
+            gain = new double[capacity];
+            energy = new double[capacity * BANDS];
+            visits = new int[Math.max(1, (int) Math.min(1024, limit / EchoHistogram.SOUND_SPEED / WINDOW_SECONDS) + 1)];
+        }
+
+        /** emits count rays from the source one by one and bounces each of them until it dies */
+        void trace(Vec source, Receivers receivers, int count, SplittableRandom rand, ArrivalSink sink) {
+            if (paths != null) {
+                sink = record(sink);
+            }
+            this.receivers = receivers;
+            receiverQuery = receivers.query();
+            rain = diffuseRain && scattering > 0;
+            this.rand = rand;
+            size = 0;
+            emitted = 0;
+            Arrays.fill(visits, 0);
+            if (rain && imageSourceOrder < 0) {
+                current = -1;
+                direct(source, count, sink);
+            }
+            while (emitted < count || size > 0) {
+                if (size == 0) {
+                    emit(source);
+                    ++emitted;
+                    ++counter.rays;
+                }
+                int i = size - 1;
+                if (!bounce(i, sink)) {
+                    counter.died(order[i]);
+                    --size;
+                }
+            }
+            counter.arrivals += receiverQuery.hits;
+        }
+
+        /** passes the arrivals to the sink and the paths */
+        private ArrivalSink record(ArrivalSink sink) {
+            return (r, d, e, o, w) -> {
+                sink.arrive(r, d, e, o, w);
+                if (current < 0) {
+                    paths.arrival(r, d, -1, w);
+                } else {
+                    paths.arrival(r, d, path[current], w * gain[current] * gain[current]);
+                }
+            };
+        }
+
+        private void emit(Vec source) {
+            int i = size++;
+            ox[i] = source.x;
+            oy[i] = source.y;
+            oz[i] = source.z;
+            randomUnit();
+            dx[i] = ux;
+            dy[i] = uy;
+            dz[i] = uz;
+            distance[i] = 0;
+            order[i] = 0;
+            window[i] = 0;
+            // the direct sound comes from direct()
+            diffuse[i] = true;
+            scattered[i] = false;
+            path[i] = -1;
+            gain[i] = 1;
+            for (int b = 0; b < BANDS; ++b) {
+                energy[i * BANDS + b] = 1;
+            }
+        }
+
+        private void copy(int from, int to) {
+            ox[to] = ox[from];
+            oy[to] = oy[from];
+            oz[to] = oz[from];
+            dx[to] = dx[from];
+            dy[to] = dy[from];
+            dz[to] = dz[from];
+            distance[to] = distance[from];
+            order[to] = order[from];
+            window[to] = window[from];
+            diffuse[to] = diffuse[from];
+            scattered[to] = scattered[from];
+            path[to] = path[from];
+            gain[to] = gain[from];
+            System.arraycopy(energy, from * BANDS, energy, to * BANDS, BANDS);
+        }
+
+        private void grow() {
+            int n = ox.length * 2;
+            ox = Arrays.copyOf(ox, n);
+            oy = Arrays.copyOf(oy, n);
+            oz = Arrays.copyOf(oz, n);
+            dx = Arrays.copyOf(dx, n);
+            dy = Arrays.copyOf(dy, n);
+            dz = Arrays.copyOf(dz, n);
+            distance = Arrays.copyOf(distance, n);
+            order = Arrays.copyOf(order, n);
+            window = Arrays.copyOf(window, n);
+            diffuse = Arrays.copyOf(diffuse, n);
+            scattered = Arrays.copyOf(scattered, n);
+            path = Arrays.copyOf(path, n);
+            gain = Arrays.copyOf(gain, n);
+            energy = Arrays.copyOf(energy, n * BANDS);
+        }
+
+        /** advances the ray i to its next reflection, returns false if the ray dies */
+        private boolean bounce(int i, ArrivalSink sink) {
+            if (distance[i] > limit) {
+                ++counter.killedByDistance;
+                return false;
+            }
+            ++counter.segments;
+            current = i;
+            double x = ox[i], y = oy[i], z = oz[i];
+            double vx = dx[i], vy = dy[i], vz = dz[i];
+            boolean hit = query.closest(x, y, z, vx, vy, vz);
+            double t = hit ? query.t : Double.POSITIVE_INFINITY;
+
+            // the specular paths up to imageSourceOrder come from the image sources
+            if ((order[i] > imageSourceOrder || scattered[i]) && !(rain && diffuse[i])) {
+                receiverQuery.arrivals(x, y, z, vx, vy, vz, t, distance[i], energy, i * BANDS, sink);
+            }
+            if (!hit) {
+                ++counter.escaped;
+                return false;
+            }
+
+            int tri = query.hit;
+            int o = tri * STRIDE;
+            double nx = scene.triangles[o + 9], ny = scene.triangles[o + 10], nz = scene.triangles[o + 11];
+            int a = scene.material[tri] * BANDS;
+            double max = 0;
+            if (scene.kernel != null) {
+                max = scene.kernel.absorb(energy, i * BANDS, scene.absorptions, a);
+            } else {
+                for (int b = 0; b < BANDS; ++b) {
+                    double e = energy[i * BANDS + b] * (1 - scene.absorptions[a + b]);
+                    energy[i * BANDS + b] = e;
+                    max = Math.max(max, e);
+                }
+            }
+            if (paths != null) {
+                path[i] = paths.node(path[i], scene.surface[tri]);
+            }
+            double px = x + vx * t, py = y + vy * t, pz = z + vz * t;
+            if (rain) {
+                rain(i, px, py, pz, nx, ny, nz, distance[i] + t, sink);
+            }
+            if (max < threshold) {
+                // Russian roulette on the squared amplitude, which the histogram adds.
+                // survivors are raised to the threshold, so the expected energy is kept
+                double p = (max / threshold) * (max / threshold);
+                if (rand.nextDouble() >= p) {
+                    ++counter.killedByThreshold;
+                    return false;
+                }
+                double scale = threshold / max;
+                for (int b = 0; b < BANDS; ++b) {
+                    energy[i * BANDS + b] *= scale;
+                }
+                gain[i] *= scale;
+            }
+            ox[i] = px;
+            oy[i] = py;
+            oz[i] = pz;
+            boolean wasScattered = scattered[i];
+            reflect(i, vx, vy, vz, nx, ny, nz);
+            distance[i] += t;
+            order[i]++;
+
+            int w = (int) (distance[i] / EchoHistogram.SOUND_SPEED / WINDOW_SECONDS);
+            if (w > window[i] && w < visits.length) {
+                window[i] = w;
+                if (++visits[w] < emitted * splitRatio && scattering > 0) {
+                    split(i, wasScattered, vx, vy, vz, nx, ny, nz);
+                }
+            }
+            return true;
+        }
+
+        /** uniform on the sphere */
+        private void randomUnit() {
+            double z = rand.nextDouble() * 2 - 1;
+            double phi = rand.nextDouble() * 2 * Math.PI;
+            double r = sqrt(1 - z * z);
+            ux = r * Math.cos(phi);
+            uy = r * Math.sin(phi);
+            uz = z;
+        }
+
+        /**
+         * adds the energy scattered at the point to the receivers seen from there.
+         * Lambert sends cos / pi of the energy per solid angle, and the receiver covers
+         * the solid angle of its cap
+         */
+        private void rain(int i, double px, double py, double pz,
+                double nx, double ny, double nz, double dist, ArrivalSink sink) {
+            var packed = receivers.packed;
+            for (int r = 0, n = packed.length / 4; r < n; ++r) {
+                double cx = packed[r * 4] - px, cy = packed[r * 4 + 1] - py, cz = packed[r * 4 + 2] - pz;
+                double rad = packed[r * 4 + 3];
+                double d2 = cx * cx + cy * cy + cz * cz;
+                if (d2 <= rad * rad) {
+                    continue;
+                }
+                double d = sqrt(d2);
+                double cos = (cx * nx + cy * ny + cz * nz) / d;
+                if (cos <= 0) {
+                    continue;
+                }
+                ++counter.shadowRays;
+                if (query.closest(px, py, pz, cx / d, cy / d, cz / d) && query.t < d - rad) {
+                    continue;
+                }
+                double solid = 2 * Math.PI * (1 - sqrt(1 - rad * rad / d2));
+                ++counter.arrivals;
+                sink.arrive(receivers.bvh.order[r], dist + d - rad, energy, i * BANDS,
+                        scattering * solid * cos / Math.PI);
+            }
+        }
+
+        /** adds the direct sound of count rays, the source sends 1 / 4pi of the energy per solid angle */
+        private void direct(Vec source, int count, ArrivalSink sink) {
+            var packed = receivers.packed;
+            for (int r = 0, n = packed.length / 4; r < n; ++r) {
+                double cx = packed[r * 4] - source.x;
+                double cy = packed[r * 4 + 1] - source.y;
+                double cz = packed[r * 4 + 2] - source.z;
+                double rad = packed[r * 4 + 3];
+                double d2 = cx * cx + cy * cy + cz * cz;
+                if (d2 <= rad * rad) {
+                    continue;
+                }
+                double d = sqrt(d2);
+                ++counter.shadowRays;
+                if (query.closest(source.x, source.y, source.z, cx / d, cy / d, cz / d) && query.t < d - rad) {
+                    continue;
+                }
+                double solid = 2 * Math.PI * (1 - sqrt(1 - rad * rad / d2));
+                ++counter.arrivals;
+                sink.arrive(receivers.bvh.order[r], d - rad, UNIT, 0, count * solid / (4 * Math.PI));
+            }
+        }
+
+        private void reflect(int i, double vx, double vy, double vz, double nx, double ny, double nz) {
+            diffuse[i] = false;
+            if (scattering > 0 && rand.nextDouble() < scattering) {
+                // Lambert, the normal plus a random unit vector
+                randomUnit();
+                double x = nx + ux, y = ny + uy, z = nz + uz;
+                double len = sqrt(x * x + y * y + z * z);
+                if (len > 1e-9) {
+                    dx[i] = x / len;
+                    dy[i] = y / len;
+                    dz[i] = z / len;
+                    diffuse[i] = true;
+                    scattered[i] = true;
+                    return;
+                }
+            }
+            double dn = 2 * (vx * nx + vy * ny + vz * nz);
+            dx[i] = vx - nx * dn;
+            dy[i] = vy - ny * dn;
+            dz[i] = vz - nz * dn;
+        }
+
+        /**
+         * splits the ray i in two at its reflection point, each with half of the energy.
+         * the new ray scatters again, so they go different ways.
+         * @param wasScattered the ray i was scattered before this reflection
+         */
+        private void split(int i, boolean wasScattered, double vx, double vy, double vz,
+                double nx, double ny, double nz) {
+            if (size == ox.length) {
+                grow();
+            }
+            double half = Math.sqrt(.5);
+            for (int b = 0; b < BANDS; ++b) {
+                energy[i * BANDS + b] *= half;
+            }
+            gain[i] *= half;
+            int j = size++;
+            copy(i, j);
+            scattered[j] = wasScattered;
+            reflect(j, vx, vy, vz, nx, ny, nz);
+        }
+    }
+
+    /** same as Sphere.intersect with op = center - origin, returns 0 if nohit */
+    static double sphere(double opx, double opy, double opz,
+            double vx, double vy, double vz, double rad) {
+        double b = opx * vx + opy * vy + opz * vz;
+        double det = b * b - (opx * opx + opy * opy + opz * opz) + rad * rad;
+        if (det < 0) {
+            return 0;
+        }
+        det = sqrt(det);
+        double t;
+        return (t = b - det) > GeoAcoustics.EPS ? t : ((t = b + det) > GeoAcoustics.EPS ? t : 0);
+    }
+}
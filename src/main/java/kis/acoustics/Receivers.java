@@ -0,0 +1,111 @@
+package kis.acoustics;
+
+import java.util.ArrayList;
+import java.util.List;
+import kis.acoustics.GeoAcoustics.Material;
+import kis.acoustics.GeoAcoustics.Sphere;
+import kis.acoustics.GeoAcoustics.Vec;
+
+/**
+ * Set of spherical receivers with a BVH so that one ray segment is tested against all of them at once.
+ * @author naoki
+ */
+public class Receivers {
+    final List<Sphere> spheres;
+    final BVH bvh;
+    // center x, y, z and radius in BVH leaf order
+    final double[] packed;
+
+    Receivers(List<Sphere> spheres) {
+        this.spheres = List.copyOf(spheres);
+        var boxes = new double[spheres.size() * 6];
+        for (int i = 0; i < spheres.size(); ++i) {
+            var mn = spheres.get(i).min();
+            var mx = spheres.get(i).max();
+            boxes[i * 6] = mn.x; boxes[i * 6 + 1] = mn.y; boxes[i * 6 + 2] = mn.z;
+            boxes[i * 6 + 3] = mx.x; boxes[i * 6 + 4] = mx.y; boxes[i * 6 + 5] = mx.z;
+        }
+        bvh = new BVH(boxes);
+        packed = new double[spheres.size() * 4];
+        for (int i = 0; i < spheres.size(); ++i) {
+            var s = spheres.get(bvh.order[i]);
+            packed[i * 4] = s.pos.x;
+            packed[i * 4 + 1] = s.pos.y;
+            packed[i * 4 + 2] = s.pos.z;
+            packed[i * 4 + 3] = s.rad;
+        }
+    }
+
+    static Receivers of(double radius, Vec... positions) {
+        var list = new ArrayList<Sphere>();
+        for (var p : positions) {
+            list.add(new Sphere(radius, p, Material.REFRECTOR));
+        }
+        return new Receivers(list);
+    }
+
+    /** seats on a grid, nx * ny * nz receivers starting at origin */
+    static Receivers grid(Vec origin, Vec step, int nx, int ny, int nz, double radius) {
+        var list = new ArrayList<Sphere>();
+        for (int z = 0; z < nz; ++z) {
+            for (int y = 0; y < ny; ++y) {
+                for (int x = 0; x < nx; ++x) {
+                    list.add(new Sphere(radius,
+                            origin.add(new Vec(step.x * x, step.y * y, step.z * z)),
+                            Material.REFRECTOR));
+                }
+            }
+        }
+        return new Receivers(list);
+    }
+
+    int size() {
+        return spheres.size();
+    }
+
+    /** Traversal state for one thread. */
+    Query query() {
+        return new Query();
+    }
+
+    class Query {
+        private final int[] stack = new int[bvh.stackSize()];
+        /** arrivals reported */
+        long hits;
+
+        /**
+         * reports every receiver crossed by the ray before tMax
+         * @param distance path length before the origin of this segment
+         */
+        void arrivals(double ox, double oy, double oz, double dx, double dy, double dz, double tMax,
+                double distance, double[] energy, int offset, RayTracer.ArrivalSink sink) {
+            if (packed.length == 0) {
+                return;
+            }
+            final var b = bvh;
+            double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+            int sp = 0;
+            stack[sp++] = 0;
+            while (sp > 0) {
+                int node = stack[--sp];
+                if (!b.hitBox(node, ox, oy, oz, ix, iy, iz, tMax)) {
+                    continue;
+                }
+                int cnt = b.count[node];
+                if (cnt > 0) {
+                    for (int i = b.offset[node], end = i + cnt; i < end; ++i) {
+                        double t = RayTracer.sphere(packed[i * 4] - ox, packed[i * 4 + 1] - oy,
+                                packed[i * 4 + 2] - oz, dx, dy, dz, packed[i * 4 + 3]);
+                        if (t != 0 && t < tMax) {
+                            ++hits;
+                            sink.arrive(b.order[i], t + distance, energy, offset, 1);
+                        }
+                    }
+                    continue;
+                }
+                stack[sp++] = b.offset[node];
+                stack[sp++] = node + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import static kis.acoustics.PackedScene.BANDS;
+import static kis.acoustics.PackedScene.STRIDE;
+import kis.acoustics.GeoAcoustics.Material;
+
+/**
+ * Compiled scene file.
+ * Packed triangles, absorption table and BVH are written as they are in memory,
+ * so reading is a memory map and some bulk copies.
+ * <pre>
+ * header   int magic, int version, 32 bytes fingerprint,
+ *          int triangles, int nodes, int materials, int surfaces
+ * doubles  triangles * 12, materials * 6 absorptions, nodes * 6 bounds
+ * ints     triangle material, triangle surface, BVH order, node offset, node count, node axis
+ * names    materials then surfaces, int length and UTF-8 bytes
+ * </pre>
+ * @author naoki
+ */
+public class SceneFile {
+    static final int MAGIC = 0x4e534341; // "ACSN"
+    static final int VERSION = 2;
+    private static final int HEADER = 56;
+
+    static void write(Path path, PackedScene scene, byte[] fingerprint) throws IOException {
+        int tri = scene.triangleCount;
+        int nodes = scene.bvh.nodeCount;
+        var names = new byte[scene.materials.length + scene.surfaceNames.length][];
+        int nameBytes = 0;
+        for (int i = 0; i < names.length; ++i) {
+            var name = i < scene.materials.length ? scene.materials[i].name
+                    : scene.surfaceNames[i - scene.materials.length];
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            nameBytes += 4 + names[i].length;
+        }
+        long size = HEADER
+                + 8L * (tri * STRIDE + scene.materials.length * BANDS + nodes * 6)
+                + 4L * (tri * 3 + nodes * 3)
+                + nameBytes;
+        var buf = ByteBuffer.allocate(Math.toIntExact(size)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).put(fingerprint)
+           .putInt(tri).putInt(nodes).putInt(scene.materials.length).putInt(scene.surfaceNames.length);
+        putDoubles(buf, scene.triangles, tri * STRIDE);
+        putDoubles(buf, scene.absorptions, scene.absorptions.length);
+        putDoubles(buf, scene.bvh.bounds, nodes * 6);
+        putInts(buf, scene.material, tri);
+        putInts(buf, scene.surface, tri);
+        putInts(buf, scene.bvh.order, tri);
+        putInts(buf, scene.bvh.offset, nodes);
+        putInts(buf, scene.bvh.count, nodes);
+        putInts(buf, scene.bvh.axis, nodes);
+        for (var name : names) {
+            buf.putInt(name.length).put(name);
+        }
+        buf.flip();
+
+        // write aside and move, so that a broken file is never read as a cache
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void putDoubles(ByteBuffer buf, double[] data, int length) {
+        buf.asDoubleBuffer().put(data, 0, length);
+        buf.position(buf.position() + length * 8);
+    }
+
+    private static void putInts(ByteBuffer buf, int[] data, int length) {
+        buf.asIntBuffer().put(data, 0, length);
+        buf.position(buf.position() + length * 4);
+    }
+
+    /** fingerprint of the file, or null if the file is not a compiled scene of this version */
+    static byte[] fingerprint(Path path) throws IOException {
+        if (!Files.isRegularFile(path) || Files.size(path) < HEADER) {
+            return null;
+        }
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buf = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {
+            }
+            buf.flip();
+            if (buf.remaining() < 40 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return null;
+            }
+            var fingerprint = new byte[32];
+            buf.get(fingerprint);
+            return fingerprint;
+        }
+    }
+
+    static PackedScene read(Path path) throws IOException {
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException(path + " is not a compiled scene");
+            }
+            buf.position(buf.position() + 32);
+            int tri = buf.getInt();
+            int nodes = buf.getInt();
+            int mats = buf.getInt();
+            int surfs = buf.getInt();
+
+            var triangles = getDoubles(buf, tri * STRIDE);
+            var absorptions = getDoubles(buf, mats * BANDS);
+            var bounds = getDoubles(buf, nodes * 6);
+            var material = getInts(buf, tri);
+            var surface = getInts(buf, tri);
+            var order = getInts(buf, tri);
+            var offset = getInts(buf, nodes);
+            var count = getInts(buf, nodes);
+            var axis = getInts(buf, nodes);
+
+            var materials = new Material[mats];
+            for (int i = 0; i < mats; ++i) {
+                materials[i] = material(getString(buf),
+                        Arrays.copyOfRange(absorptions, i * BANDS, i * BANDS + BANDS));
+            }
+            var surfaceNames = new String[surfs];
+            for (int i = 0; i < surfs; ++i) {
+                surfaceNames[i] = getString(buf);
+            }
+            return new PackedScene(triangles, material, surface, materials, surfaceNames,
+                    new BVH(bounds, offset, count, axis, order));
+        }
+    }
+
+    /** the preset itself if the name and absorptions match, to keep materials comparable */
+    private static Material material(String name, double[] absorptions) {
+        for (var m : Material.values()) {
+            if (m.name.equals(name) && Arrays.equals(m.absorptions, absorptions)) {
+                return m;
+            }
+        }
+        return new Material(name, absorptions);
+    }
+
+    private static double[] getDoubles(ByteBuffer buf, int length) {
+        var data = new double[length];
+        buf.asDoubleBuffer().get(data);
+        buf.position(buf.position() + length * 8);
+        return data;
+    }
+
+    private static int[] getInts(ByteBuffer buf, int length) {
+        var data = new int[length];
+        buf.asIntBuffer().get(data);
+        buf.position(buf.position() + length * 4);
+        return data;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        var bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,251 @@
+package kis.acoustics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import kis.acoustics.GeoAcoustics.Material;
+
+/**
+ * Loads venue meshes from OBJ or STL files.
+ * <p>
+ * Materials are given in a JSON file which maps a material name used in the mesh
+ * ({@code usemtl} of OBJ, solid name of ASCII STL) to a preset name or to six absorptions
+ * from 125Hz to 4KHz. Names not in the file are looked up in the presets,
+ * then the key {@code default} is used. Faces without a name, like the ones of binary STL,
+ * are {@code CONCRETE} when the file has no {@code default}.
+ * <p>
+ * The compiled scene is cached next to the mesh as {@code <mesh>.scene} with the SHA-256 of the mesh,
+ * the materials and the options, and read instead of the mesh while they are the same.
+ * A mesh in a directory which can't be written is compiled on every load.
+ * @author naoki
+ */
+public class SceneLoader {
+    private final Map<String, Material> materials = new HashMap<>();
+    private final Material defaultMaterial;
+    /** true if front faces of the mesh look outward, like a solid */
+    private final boolean flip;
+
+    private SceneLoader(Map<String, Object> materialDefs, boolean flip) {
+        this.flip = flip;
+        materialDefs.forEach((name, def) -> materials.put(name, material(name, def)));
+        defaultMaterial = materials.get("default");
+    }
+
+    static PackedScene load(Path mesh, Path materialFile, boolean flip) throws IOException {
+        var fingerprint = fingerprint(mesh, materialFile, flip);
+        var cache = mesh.resolveSibling(mesh.getFileName() + ".scene");
+        if (Arrays.equals(SceneFile.fingerprint(cache), fingerprint)) {
+            return SceneFile.read(cache);
+        }
+        Map<String, Object> defs = materialFile == null ? Map.of()
+                : new ObjectMapper().readValue(materialFile.toFile(), Map.class);
+        var loader = new SceneLoader(defs, flip);
+        var name = mesh.getFileName().toString().toLowerCase();
+        PackedScene.Mesh m;
+        if (name.endsWith(".obj")) {
+            m = loader.readObj(Files.readAllLines(mesh, StandardCharsets.UTF_8));
+        } else if (name.endsWith(".stl")) {
+            m = loader.readStl(Files.readAllBytes(mesh));
+        } else {
+            throw new IOException("unknown mesh format: " + mesh);
+        }
+        var scene = new PackedScene(m);
+        try {
+            SceneFile.write(cache, scene, fingerprint);
+        } catch (IOException ex) {
+            // the cache is only for the next load
+        }
+        return scene;
+    }
+
+    /** SHA-256 of the options and the contents of the files */
+    private static byte[] fingerprint(Path mesh, Path materialFile, boolean flip) throws IOException {
+        var md = EchoCache.sha256();
+        md.update(ByteBuffer.allocate(8).putInt(SceneFile.VERSION).putInt(flip ? 1 : 0).array());
+        digest(md, mesh);
+        if (materialFile != null) {
+            digest(md, materialFile);
+        }
+        return md.digest();
+    }
+
+    private static void digest(MessageDigest md, Path file) throws IOException {
+        // the size keeps the mesh and the materials apart
+        md.update(ByteBuffer.allocate(8).putLong(Files.size(file)).array());
+        try (var in = Files.newInputStream(file)) {
+            var buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+    }
+
+    static Material material(String name, Object def) {
+        if (def instanceof String) {
+            return Material.valueOf((String) def);
+        }
+        if (def instanceof List) {
+            return new Material(name, ((List<?>) def).stream()
+                    .mapToDouble(d -> ((Number) d).doubleValue())
+                    .toArray());
+        }
+        throw new IllegalArgumentException("material " + name + " should be a preset name or absorptions");
+    }
+
+    private Material lookup(String name) {
+        var m = materials.get(name);
+        if (m != null) {
+            return m;
+        }
+        try {
+            return Material.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            // not a preset
+        }
+        if (defaultMaterial != null) {
+            return defaultMaterial;
+        }
+        if (name.equals("default")) {
+            return Material.CONCRETE;
+        }
+        throw new IllegalArgumentException("no material for " + name + " and no default");
+    }
+
+    private void add(PackedScene.Mesh mesh, double[] v, int a, int b, int c, int mat, int surf) {
+        if (flip) {
+            int t = b;
+            b = c;
+            c = t;
+        }
+        mesh.add(v[a * 3], v[a * 3 + 1], v[a * 3 + 2],
+                 v[b * 3], v[b * 3 + 1], v[b * 3 + 2],
+                 v[c * 3], v[c * 3 + 1], v[c * 3 + 2], mat, surf);
+    }
+
+    PackedScene.Mesh readObj(List<String> lines) {
+        var mesh = new PackedScene.Mesh();
+        var v = new double[3 * 1024];
+        int vcount = 0;
+        var group = "default";
+        var matName = "default";
+        int mat = -1, surf = -1;
+        int lineNo = 0;
+        for (var line : lines) {
+            ++lineNo;
+            var tokens = line.trim().split("\\s+");
+            switch (tokens[0]) {
+                case "v":
+                    if (vcount * 3 == v.length) {
+                        v = Arrays.copyOf(v, v.length * 2);
+                    }
+                    for (int a = 0; a < 3; ++a) {
+                        v[vcount * 3 + a] = Double.parseDouble(tokens[a + 1]);
+                    }
+                    ++vcount;
+                    break;
+                case "g":
+                case "o":
+                    group = tokens.length > 1 ? tokens[1] : "default";
+                    surf = -1;
+                    break;
+                case "usemtl":
+                    if (tokens.length < 2) {
+                        throw new IllegalArgumentException("no material name at line " + lineNo);
+                    }
+                    matName = tokens[1];
+                    mat = -1;
+                    surf = -1;
+                    break;
+                case "f":
+                    if (mat < 0) {
+                        mat = mesh.material(lookup(matName));
+                    }
+                    if (surf < 0) {
+                        surf = mesh.surface(group + "/" + matName);
+                    }
+                    var idx = new int[tokens.length - 1];
+                    for (int i = 0; i < idx.length; ++i) {
+                        // v, v/vt, v//vn or v/vt/vn, negative is relative to the end
+                        int slash = tokens[i + 1].indexOf('/');
+                        int n = Integer.parseInt(slash < 0 ? tokens[i + 1] : tokens[i + 1].substring(0, slash));
+                        idx[i] = n < 0 ? vcount + n : n - 1;
+                        if (idx[i] < 0 || idx[i] >= vcount) {
+                            throw new IllegalArgumentException("bad vertex index at line " + lineNo);
+                        }
+                    }
+                    // polygons are split as a fan
+                    for (int i = 1; i < idx.length - 1; ++i) {
+                        add(mesh, v, idx[0], idx[i], idx[i + 1], mat, surf);
+                    }
+                    break;
+                default:
+                    // vt, vn, s, mtllib and comments are not needed
+            }
+        }
+        return mesh;
+    }
+
+    PackedScene.Mesh readStl(byte[] data) {
+        var head = new String(data, 0, Math.min(data.length, 512), StandardCharsets.US_ASCII).trim();
+        // binary files may also start with "solid", so check the size that binary should have
+        boolean binary = data.length >= 84
+                && 84 + 50L * Integer.toUnsignedLong(
+                        ByteBuffer.wrap(data, 80, 4).order(ByteOrder.LITTLE_ENDIAN).getInt()) == data.length;
+        if (!binary && head.startsWith("solid")) {
+            return readAsciiStl(new String(data, StandardCharsets.US_ASCII));
+        }
+        var mesh = new PackedScene.Mesh();
+        var buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(80);
+        int count = buf.getInt();
+        int mat = mesh.material(lookup("default"));
+        int surf = mesh.surface("default");
+        var v = new double[9];
+        for (int i = 0; i < count; ++i) {
+            buf.position(84 + i * 50 + 12); // skip the normal
+            for (int k = 0; k < 9; ++k) {
+                v[k] = buf.getFloat();
+            }
+            add(mesh, v, 0, 1, 2, mat, surf);
+        }
+        return mesh;
+    }
+
+    private PackedScene.Mesh readAsciiStl(String text) {
+        var mesh = new PackedScene.Mesh();
+        var v = new double[9];
+        int vcount = 0;
+        int mat = -1, surf = -1;
+        for (var line : text.split("\\R")) {
+            var tokens = line.trim().split("\\s+");
+            switch (tokens[0]) {
+                case "solid":
+                    var name = tokens.length > 1 ? tokens[1] : "default";
+                    mat = mesh.material(lookup(name));
+                    surf = mesh.surface(name);
+                    break;
+                case "vertex":
+                    for (int a = 0; a < 3; ++a) {
+                        v[vcount * 3 + a] = Double.parseDouble(tokens[a + 1]);
+                    }
+                    if (++vcount == 3) {
+                        add(mesh, v, 0, 1, 2, mat, surf);
+                        vcount = 0;
+                    }
+                    break;
+                default:
+            }
+        }
+        return mesh;
+    }
+}
@@ -0,0 +1,181 @@
+package kis.acoustics;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters of the tracing in this process.
+ * Workers count in plain fields and add them here when a task ends,
+ * which is also recorded as a JFR event, so the counting costs nothing in the ray loop.
+ * @author naoki
+ */
+public class TraceStats {
+    /** totals of every tracer */
+    static final TraceStats TOTAL = new TraceStats();
+    /** reflection orders counted separately, deeper ones go to the last */
+    static final int DEPTHS = 256;
+
+    final LongAdder rays = new LongAdder();
+    final LongAdder segments = new LongAdder();
+    final LongAdder nodes = new LongAdder();
+    final LongAdder triangleTests = new LongAdder();
+    final LongAdder shadowRays = new LongAdder();
+    final LongAdder arrivals = new LongAdder();
+    final LongAdder killedByThreshold = new LongAdder();
+    final LongAdder killedByDistance = new LongAdder();
+    final LongAdder escaped = new LongAdder();
+    /** rays which ended after each count of reflections */
+    final AtomicLongArray depth = new AtomicLongArray(DEPTHS);
+    final LongAdder tasks = new LongAdder();
+    final LongAdder taskNanos = new LongAdder();
+    final LongAccumulator minTaskNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    final LongAccumulator maxTaskNanos = new LongAccumulator(Math::max, 0);
+
+    /** Counts of one worker, kept while it traces. */
+    static class Counter {
+        long rays, segments, shadowRays, arrivals;
+        long killedByThreshold, killedByDistance, escaped;
+        final long[] depth = new long[DEPTHS];
+
+        void died(int order) {
+            ++depth[Math.min(order, DEPTHS - 1)];
+        }
+    }
+
+    @Name("kis.acoustics.TraceTask")
+    @Label("Trace Task")
+    @Category("Acoustics")
+    @Description("rays traced by one task of a simulation")
+    static class TaskEvent extends Event {
+        @Label("Rays")
+        long rays;
+        @Label("Segments")
+        long segments;
+        @Label("BVH Nodes")
+        long nodes;
+        @Label("Triangle Tests")
+        long triangleTests;
+        @Label("Shadow Rays")
+        long shadowRays;
+        @Label("Arrivals")
+        long arrivals;
+        @Label("Killed by Threshold")
+        long killedByThreshold;
+        @Label("Killed by Distance")
+        long killedByDistance;
+        @Label("Escaped")
+        long escaped;
+    }
+
+    @Name("kis.acoustics.Trace")
+    @Label("Trace")
+    @Category("Acoustics")
+    @Description("rays traced on the pool, a simulation or a round of it")
+    static class TraceEvent extends Event {
+        @Label("Rays")
+        long rays;
+        @Label("Receivers")
+        int receivers;
+        @Label("Tasks")
+        int tasks;
+    }
+
+    /** adds the counts of a task which started at start nanos, the counts are cleared */
+    void add(Counter c, PackedScene.Query query, long start) {
+        long nanos = System.nanoTime() - start;
+        var event = new TaskEvent();
+        if (event.isEnabled()) {
+            event.rays = c.rays;
+            event.segments = c.segments;
+            event.nodes = query.nodes;
+            event.triangleTests = query.tests;
+            event.shadowRays = c.shadowRays;
+            event.arrivals = c.arrivals;
+            event.killedByThreshold = c.killedByThreshold;
+            event.killedByDistance = c.killedByDistance;
+            event.escaped = c.escaped;
+            event.commit();
+        }
+        rays.add(c.rays);
+        segments.add(c.segments);
+        nodes.add(query.nodes);
+        triangleTests.add(query.tests);
+        shadowRays.add(c.shadowRays);
+        arrivals.add(c.arrivals);
+        killedByThreshold.add(c.killedByThreshold);
+        killedByDistance.add(c.killedByDistance);
+        escaped.add(c.escaped);
+        for (int i = 0; i < DEPTHS; ++i) {
+            if (c.depth[i] != 0) {
+                depth.getAndAdd(i, c.depth[i]);
+            }
+        }
+        tasks.increment();
+        taskNanos.add(nanos);
+        minTaskNanos.accumulate(nanos);
+        maxTaskNanos.accumulate(nanos);
+
+        c.rays = c.segments = c.shadowRays = c.arrivals = 0;
+        c.killedByThreshold = c.killedByDistance = c.escaped = 0;
+        Arrays.fill(c.depth, 0);
+        query.nodes = query.tests = 0;
+    }
+
+    /** @param seconds wall clock time of the run */
+    Map<String, Object> summary(double seconds) {
+        long n = rays.sum();
+        double perRay = Math.max(1, n);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("rays", n);
+        map.put("seconds", seconds);
+        map.put("raysPerSecond", seconds > 0 ? n / seconds : 0);
+        map.put("segmentsPerRay", segments.sum() / perRay);
+        map.put("nodesPerRay", nodes.sum() / perRay);
+        map.put("triangleTestsPerRay", triangleTests.sum() / perRay);
+        map.put("shadowRays", shadowRays.sum());
+        map.put("arrivals", arrivals.sum());
+        map.put("arrivalsPerRay", arrivals.sum() / perRay);
+        map.put("killedByThreshold", killedByThreshold.sum());
+        map.put("killedByDistance", killedByDistance.sum());
+        map.put("escaped", escaped.sum());
+        int last = DEPTHS - 1;
+        while (last > 0 && depth.get(last) == 0) {
+            --last;
+        }
+        var depths = new long[last + 1];
+        for (int i = 0; i <= last; ++i) {
+            depths[i] = depth.get(i);
+        }
+        map.put("depth", depths);
+        long t = tasks.sum();
+        map.put("tasks", t);
+        if (t > 0) {
+            double mean = taskNanos.sum() / (double) t;
+            map.put("taskMillisMin", minTaskNanos.get() / 1e6);
+            map.put("taskMillisMean", mean / 1e6);
+            map.put("taskMillisMax", maxTaskNanos.get() / 1e6);
+            // 1 when the tasks are even
+            map.put("imbalance", maxTaskNanos.get() / mean);
+        }
+        return map;
+    }
+
+    String toJson(double seconds) {
+        try {
+            return new ObjectMapper().writeValueAsString(summary(seconds));
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
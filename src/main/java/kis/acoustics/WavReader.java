@@ -0,0 +1,114 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads 16bit PCM WAV files block by block into planar float buffers.
+ * WAVE_FORMAT_EXTENSIBLE files of 16bit PCM are read as well.
+ * @author naoki
+ */
+public class WavReader implements AutoCloseable {
+    final FileChannel channel;
+    final int channels;
+    final float sampleRate;
+    final long frames;
+    private final int frameSize;
+    // frames of the data chunk not read yet, chunks after it are not audio
+    private long remaining;
+    private ByteBuffer buf;
+
+    WavReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            var head = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(head);
+            if (head.getInt(0) != 0x46464952 || head.getInt(8) != 0x45564157) { // RIFF, WAVE
+                throw new IOException(path + " is not a WAV file");
+            }
+            int ch = 0, bits = 0, format = 0;
+            float rate = 0;
+            var chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while (true) {
+                chunk.clear();
+                readFully(chunk);
+                int id = chunk.getInt(0);
+                long size = Integer.toUnsignedLong(chunk.getInt(4));
+                if (id == 0x20746d66) { // "fmt "
+                    var fmt = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+                    readFully(fmt);
+                    format = Short.toUnsignedInt(fmt.getShort(0));
+                    ch = fmt.getShort(2);
+                    rate = fmt.getInt(4);
+                    bits = fmt.getShort(14);
+                    if (format == 0xfffe && size >= 26) {
+                        // WAVE_FORMAT_EXTENSIBLE, the sub format GUID starts with the format
+                        format = Short.toUnsignedInt(fmt.getShort(24));
+                    }
+                    if (size % 2 == 1) {
+                        channel.position(channel.position() + 1);
+                    }
+                } else if (id == 0x61746164) { // "data"
+                    if (format != 1 || bits != 16) {
+                        throw new IOException("only 16bit PCM is supported: format " + format + ", " + bits + "bit");
+                    }
+                    channels = ch;
+                    sampleRate = rate;
+                    frameSize = ch * 2;
+                    // some writers leave the size 0 or too big when streaming
+                    long remain = channel.size() - channel.position();
+                    frames = (size == 0 || size > remain ? remain : size) / frameSize;
+                    remaining = frames;
+                    return;
+                } else {
+                    channel.position(channel.position() + size + (size % 2));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) {
+                throw new IOException("unexpected end of WAV");
+            }
+        }
+        b.flip();
+    }
+
+    /**
+     * reads up to out[ch].length frames, scaled to -32768 .. 32767
+     * @return frames read, 0 at the end
+     */
+    int read(float[][] out) throws IOException {
+        int want = (int) Math.min(out[0].length, remaining);
+        int bytes = want * frameSize;
+        if (buf == null || buf.capacity() < bytes) {
+            buf = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buf.clear().limit(bytes);
+        while (buf.hasRemaining() && channel.read(buf) >= 0) {
+        }
+        buf.flip();
+        int n = buf.remaining() / frameSize;
+        for (int i = 0; i < n; ++i) {
+            for (int ch = 0; ch < channels; ++ch) {
+                out[ch][i] = buf.getShort();
+            }
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
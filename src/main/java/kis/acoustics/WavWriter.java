@@ -0,0 +1,76 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes 16bit PCM WAV files from planar float buffers as they come.
+ * Sizes in the header are filled when closed.
+ * @author naoki
+ */
+public class WavWriter implements AutoCloseable {
+    private static final int HEADER = 44;
+    final FileChannel channel;
+    final int channels;
+    final int sampleRate;
+    private long frames;
+    private ByteBuffer buf;
+
+    WavWriter(Path path, int channels, int sampleRate) throws IOException {
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(header(), 0);
+    }
+
+    private ByteBuffer header() {
+        long data = frames * channels * 2;
+        var h = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(0x46464952).putInt((int) Math.min(0xffffffffL, data + HEADER - 8)).putInt(0x45564157);
+        h.putInt(0x20746d66).putInt(16)
+         .putShort((short) 1).putShort((short) channels)
+         .putInt(sampleRate).putInt(sampleRate * channels * 2)
+         .putShort((short) (channels * 2)).putShort((short) 16);
+        h.putInt(0x61746164).putInt((int) Math.min(0xffffffffL, data));
+        h.flip();
+        return h;
+    }
+
+    private void writeFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            position += channel.write(b, position);
+        }
+    }
+
+    /** writes the first n frames, clipped to 16bit */
+    void write(float[][] in, int n) throws IOException {
+        int bytes = n * channels * 2;
+        if (buf == null || buf.capacity() < bytes) {
+            buf = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buf.clear();
+        for (int i = 0; i < n; ++i) {
+            for (int ch = 0; ch < channels; ++ch) {
+                float v = Math.round(in[ch][i]);
+                buf.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v)));
+            }
+        }
+        buf.flip();
+        writeFully(buf, HEADER + frames * channels * 2);
+        frames += n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeFully(header(), 0);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package kis.acoustics;
+
+/**
+ * Haar filter bank computed by lifting in place on a float buffer.
+ * <p>
+ * Band k in 1 .. levels is the detail of level k, and band levels + 1 is the approximation.
+ * The coefficients stay where the lifting leaves them, so band k is at
+ * {@link #offset(int)} + i * {@link #stride(int)} and no band array is needed.
+ * Detail is (a - b) / 2 and approximation is (a + b) / 2, as the bands were scaled before.
+ * @author naoki
+ */
+public class Wavelet {
+    final int levels;
+
+    Wavelet(int levels) {
+        if (levels < 1 || levels > 30) {
+            throw new IllegalArgumentException("levels should be 1 to 30: " + levels);
+        }
+        this.levels = levels;
+    }
+
+    /** details and the approximation */
+    int bands() {
+        return levels + 1;
+    }
+
+    /** buffers are a multiple of this */
+    int unit() {
+        return 1 << levels;
+    }
+
+    int offset(int band) {
+        return band > levels ? 0 : 1 << (band - 1);
+    }
+
+    int stride(int band) {
+        return 1 << Math.min(band, levels);
+    }
+
+    /** coefficients of the band in length samples */
+    int length(int band, int length) {
+        return length >> Math.min(band, levels);
+    }
+
+    /** transforms x[0 .. length) in place, length is a multiple of {@link #unit()} */
+    void forward(float[] x, int length) {
+        for (int step = 1; step < 1 << levels; step *= 2) {
+            int pair = step * 2;
+            for (int i = 0; i < length; i += pair) {
+                float d = (x[i] - x[i + step]) / 2;
+                x[i + step] = d;
+                x[i] -= d;
+            }
+        }
+    }
+
+    /** inverse of {@link #forward} in place */
+    void inverse(float[] x, int length) {
+        for (int step = 1 << (levels - 1); step > 0; step /= 2) {
+            int pair = step * 2;
+            for (int i = 0; i < length; i += pair) {
+                float s = x[i], d = x[i + step];
+                x[i] = s + d;
+                x[i + step] = s - d;
+            }
+        }
+    }
+}
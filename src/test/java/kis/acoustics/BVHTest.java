@@ -0,0 +1,29 @@
+package kis.acoustics;
+
+import java.util.HashSet;
+import kis.acoustics.GeoAcoustics.Vec;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The SAH doesn't bound the depth of the tree, the traversal stacks follow it.
+ * @author naoki
+ */
+public class BVHTest {
+    @Test
+    public void deepTreeIsTraversed() {
+        // the farthest receiver alone is the cheapest split, so the tree peels one receiver a level
+        int n = 128;
+        var positions = new Vec[n];
+        for (int i = 0; i < n; ++i) {
+            positions[i] = new Vec(Math.scalb(1., 4 * i), 0, 0);
+        }
+        var receivers = Receivers.of(.1, positions);
+        assertTrue(receivers.bvh.depth > 64, "depth " + receivers.bvh.depth);
+        var hit = new HashSet<Integer>();
+        receivers.query().arrivals(-1, 0, 0, 1, 0, 0, Double.POSITIVE_INFINITY, 0, new double[PackedScene.BANDS], 0,
+                (r, d, e, o, w) -> hit.add(r));
+        assertEquals(n, hit.size());
+    }
+}
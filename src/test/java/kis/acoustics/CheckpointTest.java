@@ -0,0 +1,92 @@
+package kis.acoustics;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import kis.acoustics.GeoAcoustics.Vec;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A stopped simulation resumes to the echo of the uninterrupted one, only with its own seed.
+ * @author naoki
+ */
+public class CheckpointTest {
+    // a chunk of a pool of one thread
+    static final int CHUNK = RayTracer.BLOCK * 64;
+    static final Vec SOURCE = new Vec(3, 2, 3);
+
+    @TempDir
+    Path dir;
+
+    static RayTracer tracer(Long seed) {
+        var tracer = new RayTracer(new PackedScene(GeoAcoustics.surfaces));
+        tracer.threshold = .1;
+        tracer.seed = seed;
+        return tracer;
+    }
+
+    /** traces until the second chunk, so the checkpoint has the first one */
+    static void stop(RayTracer tracer, Receivers receivers, Checkpoint checkpoint) throws Exception {
+        var live = new LiveEcho() {
+            @Override
+            void publish(EchoHistogram[] hists, long rays) {
+                super.publish(hists, rays);
+                if (rays() > CHUNK) {
+                    cancel();
+                }
+            }
+        };
+        var pool = new ForkJoinPool(1);
+        try {
+            pool.submit(() -> tracer.simulate(SOURCE, receivers, CHUNK * 3, 1, live, checkpoint)).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static EchoHistogram[] resume(RayTracer tracer, Receivers receivers, Checkpoint checkpoint) throws Exception {
+        var pool = new ForkJoinPool(1);
+        try {
+            return pool.submit(() -> tracer.simulate(SOURCE, receivers, CHUNK * 3, 1, new LiveEcho(), checkpoint))
+                    .get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void resumedIsUninterrupted() throws Exception {
+        var receivers = Receivers.of(.3, new Vec(8, 2.7, 4.3));
+        var expected = tracer(3L).simulate(SOURCE, receivers, CHUNK * 3, 1);
+        var checkpoint = new Checkpoint(dir.resolve("a.checkpoint"), 0);
+        stop(tracer(3L), receivers, checkpoint);
+        assertTrue(Files.exists(checkpoint.path));
+        var resumed = resume(tracer(3L), receivers, checkpoint);
+        assertArrayEquals(expected[0].echo, resumed[0].echo);
+        assertFalse(Files.exists(checkpoint.path));
+
+        // without a seed the one of the checkpoint is taken
+        stop(tracer(3L), receivers, checkpoint);
+        resumed = resume(tracer(null), receivers, checkpoint);
+        assertArrayEquals(expected[0].echo, resumed[0].echo);
+    }
+
+    @Test
+    public void otherSeedIsRejected() throws Exception {
+        var receivers = Receivers.of(.3, new Vec(8, 2.7, 4.3));
+        var checkpoint = new Checkpoint(dir.resolve("b.checkpoint"), 0);
+        stop(tracer(3L), receivers, checkpoint);
+        assertThrows(IllegalArgumentException.class, () -> tracer(4L).simulate(SOURCE, receivers, CHUNK * 3, 1,
+                new LiveEcho(), checkpoint));
+        var other = tracer(3L);
+        other.scattering = .1;
+        assertThrows(IllegalArgumentException.class, () -> other.simulate(SOURCE, receivers, CHUNK * 3, 1,
+                new LiveEcho(), checkpoint));
+        assertTrue(Files.exists(checkpoint.path));
+    }
+}
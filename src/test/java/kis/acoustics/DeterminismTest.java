@@ -0,0 +1,94 @@
+package kis.acoustics;
+
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import kis.acoustics.GeoAcoustics.Vec;
+import static kis.acoustics.PackedScene.BANDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * With a seed, the echo is the same bits for any count of threads and any split into shards.
+ * @author naoki
+ */
+public class DeterminismTest {
+    static final Vec SOURCE = new Vec(3, 2, 3);
+    // the last block is not full
+    static final int SAMPLES = RayTracer.BLOCK * 40 + 123;
+
+    @TempDir
+    Path dir;
+
+    static RayTracer tracer() {
+        var tracer = new RayTracer(new PackedScene(GeoAcoustics.surfaces));
+        tracer.seed = 11L;
+        tracer.threshold = .05;
+        tracer.scattering = .2;
+        tracer.splitRatio = .5;
+        tracer.imageSourceOrder = 2;
+        return tracer;
+    }
+
+    static Receivers receivers() {
+        return Receivers.of(.3, new Vec(8, 2.7, 4.3), new Vec(5, 5, 8));
+    }
+
+    static <T> T on(int threads, Callable<T> task) throws Exception {
+        var pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(task).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** the echo is resolved from the fixed point sums, so the same sums give the same bits */
+    static void assertSameEcho(EchoHistogram[] expected, EchoHistogram[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int r = 0; r < expected.length; ++r) {
+            assertEquals(expected[r].rays, actual[r].rays);
+            assertEquals(expected[r].count, actual[r].count);
+            for (int b = 0; b < BANDS; ++b) {
+                assertArrayEquals(expected[r].echo[b], actual[r].echo[b], "receiver " + r + " band " + b);
+            }
+        }
+    }
+
+    @Test
+    public void threadsGiveTheSameEcho() throws Exception {
+        var receivers = receivers();
+        var one = on(1, () -> tracer().simulate(SOURCE, receivers, SAMPLES, 1));
+        var four = on(4, () -> tracer().simulate(SOURCE, receivers, SAMPLES, 1));
+        var seven = on(7, () -> tracer().simulate(SOURCE, receivers, SAMPLES, 1));
+        assertSameEcho(one, four);
+        assertSameEcho(one, seven);
+    }
+
+    @Test
+    public void shardsGiveTheSameEcho() throws Exception {
+        var receivers = receivers();
+        var whole = on(4, () -> tracer().simulate(SOURCE, receivers, SAMPLES, 1));
+        int shards = 3;
+        long blocks = (SAMPLES + RayTracer.BLOCK - 1) / RayTracer.BLOCK;
+        var parts = new PartialEcho[receivers.size()][shards];
+        for (int s = 0; s < shards; ++s) {
+            long from = blocks * s / shards, to = blocks * (s + 1) / shards;
+            // shards run with other thread counts, like on other machines
+            var hists = on(s + 1, () -> tracer().shard(SOURCE, receivers, 11, SAMPLES, from, to, 1));
+            for (int r = 0; r < hists.length; ++r) {
+                var path = dir.resolve(r + "." + s + ".part");
+                new PartialEcho(11, s, shards, hists[r]).write(path);
+                parts[r][s] = PartialEcho.read(path);
+            }
+        }
+        var merged = new EchoHistogram[receivers.size()];
+        for (int r = 0; r < merged.length; ++r) {
+            // in another order than traced
+            merged[r] = PartialEcho.merge(parts[r][2], parts[r][0], parts[r][1]);
+        }
+        assertSameEcho(whole, tracer().finish(merged, SOURCE, receivers));
+    }
+}
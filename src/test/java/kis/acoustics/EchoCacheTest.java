@@ -0,0 +1,39 @@
+package kis.acoustics;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static kis.acoustics.PackedScene.BANDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The memory tier keeps an entry whose file is already evicted.
+ * @author naoki
+ */
+public class EchoCacheTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void putDoesNotReadTheFileBack() throws Exception {
+        var hist = new EchoHistogram(1);
+        var energy = new double[BANDS];
+        for (int i = 0; i < 100; ++i) {
+            Arrays.fill(energy, 1 + i % 7);
+            hist.add(i * .5, energy, 0);
+        }
+        hist.resolve();
+        // no room on disk, the file is evicted as soon as it is written
+        var cache = new EchoCache(dir, 0, 1 << 20);
+        cache.put("key", hist);
+        assertFalse(Files.exists(dir.resolve("key.echo")));
+        var echo = cache.get("key");
+        assertEquals(hist.count, echo.count);
+        assertArrayEquals(hist.trimmed(), echo.echo);
+        assertArrayEquals(EchoHistogram.HZ, echo.hz);
+    }
+}
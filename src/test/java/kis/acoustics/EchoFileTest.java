@@ -0,0 +1,46 @@
+package kis.acoustics;
+
+import java.nio.file.Path;
+import static kis.acoustics.PackedScene.BANDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Echo files keep the bands of {@link EchoHistogram#HZ}.
+ * @author naoki
+ */
+public class EchoFileTest {
+    @TempDir
+    Path dir;
+
+    static double[][] echo(int bands) {
+        var echo = new double[bands][];
+        for (int b = 0; b < bands; ++b) {
+            echo[b] = new double[] {b, b + .5, 1. / (b + 3)};
+        }
+        return echo;
+    }
+
+    @Test
+    void bandsAreReadBack() throws Exception {
+        var path = dir.resolve("a.echo");
+        for (int flags : new int[] {0, EchoFile.DEFLATE}) {
+            EchoFile.write(path, echo(BANDS), 42, flags);
+            var read = EchoFile.read(path);
+            assertEquals(42, read.count);
+            assertArrayEquals(EchoHistogram.HZ, read.hz);
+            assertArrayEquals(echo(BANDS), read.echo);
+        }
+    }
+
+    @Test
+    void otherBandCountIsRejected() {
+        var ex = assertThrows(IllegalArgumentException.class,
+                () -> EchoFile.write(dir.resolve("b.echo"), echo(BANDS + 1), 0, 0));
+        assertTrue(ex.getMessage().contains((BANDS + 1) + " bands"), ex.getMessage());
+    }
+}
@@ -0,0 +1,39 @@
+package kis.acoustics;
+
+import java.util.List;
+import java.util.Random;
+import kis.acoustics.GeoAcoustics.Material;
+import kis.acoustics.GeoAcoustics.Sphere;
+import kis.acoustics.GeoAcoustics.Vec;
+import static kis.acoustics.PackedScene.STRIDE;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A sphere is packed as triangles which face outside.
+ * @author naoki
+ */
+public class PackedSceneTest {
+    @Test
+    void sphereIsTessellated() {
+        var scene = new PackedScene(List.of(new Sphere(1, new Vec(0, 0, 0), Material.REFRECTOR)));
+        var query = scene.query();
+        var rand = new Random(1);
+        // the facets are inside the sphere by at most 1 - cos(pi / 8)
+        double sag = 1 - Math.cos(Math.PI / 8);
+        for (int k = 0; k < 1000; ++k) {
+            double z = rand.nextDouble() * 2 - 1, phi = rand.nextDouble() * 2 * Math.PI;
+            double r = Math.sqrt(1 - z * z);
+            double dx = r * Math.cos(phi), dy = r * Math.sin(phi);
+            // from outside toward the center
+            assertTrue(query.closest(5 * dx, 5 * dy, 5 * z, -dx, -dy, -z));
+            assertTrue(query.t >= 4 && query.t <= 4 + sag, "t " + query.t);
+            int o = query.hit * STRIDE;
+            double cos = scene.triangles[o + 9] * dx + scene.triangles[o + 10] * dy + scene.triangles[o + 11] * z;
+            assertTrue(cos > .9, "cos " + cos);
+            // the back side is not hit from inside
+            assertFalse(query.closest(0, 0, 0, dx, dy, z));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package kis.acoustics;
+
+import java.util.SplittableRandom;
+import kis.acoustics.GeoAcoustics.Material;
+import static kis.acoustics.PackedScene.BANDS;
+import static kis.acoustics.PackedScene.STRIDE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The Vector API kernel should give the same bits as the scalar code, on vectors of any width.
+ * Skipped when the kernel is not built or jdk.incubator.vector is not added.
+ * @author naoki
+ */
+public class PacketKernelTest {
+    private static PacketKernel kernel(PackedScene scene, int bandBits) {
+        try {
+            return (PacketKernel) Class.forName("kis.acoustics.VectorPacketKernel")
+                    .getDeclaredConstructor(PackedScene.class, int.class)
+                    .newInstance(scene, bandBits);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    @Test
+    public void absorbIsScalarOnEveryWidth() {
+        var scene = new PackedScene(GeoAcoustics.surfaces);
+        // 2 lanes like NEON, 4 like AVX2, 8 like AVX-512
+        for (int bits : new int[] {128, 256, 512}) {
+            var kernel = kernel(scene, bits);
+            assumeTrue(kernel != null, "no vector kernel");
+            var rand = new SplittableRandom(bits);
+            for (int n = 0; n < 1000; ++n) {
+                var energy = new double[BANDS * 3];
+                var absorption = new double[BANDS * 2];
+                for (int i = 0; i < energy.length; ++i) {
+                    energy[i] = rand.nextDouble();
+                }
+                for (int i = 0; i < absorption.length; ++i) {
+                    absorption[i] = rand.nextDouble();
+                }
+                var expected = energy.clone();
+                double max = 0;
+                for (int b = 0; b < BANDS; ++b) {
+                    expected[BANDS + b] *= 1 - absorption[BANDS + b];
+                    max = Math.max(max, expected[BANDS + b]);
+                }
+                assertEquals(max, kernel.absorb(energy, BANDS, absorption, BANDS), bits + "bit");
+                assertArrayEquals(expected, energy, bits + "bit");
+            }
+        }
+    }
+
+    /** the scalar Moller-Trumbore of PackedScene.Query#closest over one leaf */
+    private static int leaf(PackedScene scene, double ox, double oy, double oz, double dx, double dy, double dz,
+            int offset, int count, double best, double[] t) {
+        var tri = scene.triangles;
+        int hit = -1;
+        for (int i = offset; i < offset + count; ++i) {
+            int o = i * STRIDE;
+            double e1x = tri[o + 3], e1y = tri[o + 4], e1z = tri[o + 5];
+            double e2x = tri[o + 6], e2y = tri[o + 7], e2z = tri[o + 8];
+            double px = dy * e2z - dz * e2y;
+            double py = dz * e2x - dx * e2z;
+            double pz = dx * e2y - dy * e2x;
+            double det = e1x * px + e1y * py + e1z * pz;
+            if (det <= 0) {
+                continue;
+            }
+            double sx = ox - tri[o], sy = oy - tri[o + 1], sz = oz - tri[o + 2];
+            double u = sx * px + sy * py + sz * pz;
+            if (u < 0 || u > det) {
+                continue;
+            }
+            double qx = sy * e1z - sz * e1y;
+            double qy = sz * e1x - sx * e1z;
+            double qz = sx * e1y - sy * e1x;
+            double v = dx * qx + dy * qy + dz * qz;
+            if (v < 0 || u + v > det) {
+                continue;
+            }
+            double d = (e2x * qx + e2y * qy + e2z * qz) / det;
+            if (d > 0 && d < best) {
+                best = d;
+                hit = i;
+            }
+        }
+        t[0] = best;
+        return hit;
+    }
+
+    @Test
+    public void leafIsScalarOnEveryWidth() {
+        // triangles around the origin facing any way, some of them overlap
+        var rand = new SplittableRandom(3);
+        var mesh = new PackedScene.Mesh();
+        int mat = mesh.material(Material.CONCRETE), surf = mesh.surface("random");
+        for (int i = 0; i < 64; ++i) {
+            double cx = rand.nextDouble(-1, 1), cy = rand.nextDouble(-1, 1), cz = rand.nextDouble(-1, 1);
+            mesh.add(cx + rand.nextDouble(-1, 1), cy + rand.nextDouble(-1, 1), cz + rand.nextDouble(-1, 1),
+                    cx + rand.nextDouble(-1, 1), cy + rand.nextDouble(-1, 1), cz + rand.nextDouble(-1, 1),
+                    cx + rand.nextDouble(-1, 1), cy + rand.nextDouble(-1, 1), cz + rand.nextDouble(-1, 1), mat, surf);
+        }
+        var scene = new PackedScene(mesh);
+        var expected = new double[1];
+        var actual = new double[1];
+        // the leaf fills 2, 4 and 8 lanes, or only part of them
+        for (int bits : new int[] {128, 256, 512}) {
+            var kernel = kernel(scene, bits);
+            assumeTrue(kernel != null, "no vector kernel");
+            int hits = 0;
+            for (int n = 0; n < 20_000; ++n) {
+                int count = 1 + n % BVH.LEAF_SIZE;
+                int offset = rand.nextInt(scene.triangleCount - count + 1);
+                double ox = rand.nextDouble(-4, 4), oy = rand.nextDouble(-4, 4), oz = rand.nextDouble(-4, 4);
+                // toward the middle, so that most rays cross the triangles
+                double dx = rand.nextDouble(-.5, .5) - ox, dy = rand.nextDouble(-.5, .5) - oy, dz = rand.nextDouble(-.5, .5) - oz;
+                double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                double best = n % 3 == 0 ? rand.nextDouble(8) : Double.POSITIVE_INFINITY;
+                expected[0] = actual[0] = -1;
+                int hit = leaf(scene, ox, oy, oz, dx / len, dy / len, dz / len, offset, count, best, expected);
+                assertEquals(hit, kernel.leaf(ox, oy, oz, dx / len, dy / len, dz / len, offset, count, best, actual),
+                        bits + "bit " + count + " triangles");
+                if (hit >= 0) {
+                    ++hits;
+                    assertEquals(expected[0], actual[0], bits + "bit " + count + " triangles");
+                }
+            }
+            assertTrue(hits > 1000, "hits " + hits);
+        }
+    }
+
+    @Test
+    public void closestIsScalar() {
+        var scalar = new PackedScene(GeoAcoustics.surfaces);
+        var kernel = kernel(scalar, 128);
+        assumeTrue(kernel != null, "no vector kernel");
+        System.setProperty("acoustics.simd", "true");
+        PackedScene vector;
+        try {
+            vector = new PackedScene(GeoAcoustics.surfaces);
+        } finally {
+            System.clearProperty("acoustics.simd");
+        }
+        assumeTrue(vector.kernel != null, "no vector kernel");
+        var a = scalar.query();
+        var b = vector.query();
+        var rand = new SplittableRandom(1);
+        for (int n = 0; n < 100_000; ++n) {
+            double ox = rand.nextDouble(10), oy = rand.nextDouble(4), oz = rand.nextDouble(6);
+            double dx = rand.nextDouble(-1, 1), dy = rand.nextDouble(-1, 1), dz = rand.nextDouble(-1, 1);
+            double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            boolean hit = a.closest(ox, oy, oz, dx / len, dy / len, dz / len);
+            assertEquals(hit, b.closest(ox, oy, oz, dx / len, dy / len, dz / len));
+            if (hit) {
+                assertEquals(a.hit, b.hit);
+                assertEquals(a.t, b.t);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package kis.acoustics;
+
+import java.util.stream.IntStream;
+import kis.acoustics.GeoAcoustics.Vec;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Diffuse rain scores the scattered energy at every reflection, so the late echo
+ * converges with fewer rays than waiting for the rays to hit the receiver.
+ * @author naoki
+ */
+public class RainTest {
+    static final int SEEDS = 6;
+    static final int WINDOWS = 10;
+
+    /** the late echo of band 3 per ray in windows from 100ms to 1s, for each seed */
+    static double[][] late(boolean rain, int rays) {
+        var windows = new double[SEEDS][WINDOWS];
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            var tracer = new RayTracer(new PackedScene(GeoAcoustics.surfaces));
+            tracer.seed = (long) seed;
+            tracer.scattering = 1;
+            tracer.diffuseRain = rain;
+            tracer.threshold = .1;
+            var hist = tracer.simulate(new Vec(3, 2, 3), Receivers.of(.1, new Vec(8, 2.7, 4.3)), rays, 1)[0];
+            var echo = hist.echo[3];
+            int start = echo.length / 10, width = (echo.length - start) / WINDOWS;
+            for (int w = 0; w < WINDOWS; ++w) {
+                for (int i = start + w * width; i < start + (w + 1) * width; ++i) {
+                    windows[seed][w] += echo[i] / hist.rays;
+                }
+            }
+        }
+        return windows;
+    }
+
+    static double mean(double[][] windows, int w) {
+        return IntStream.range(0, SEEDS).mapToDouble(s -> windows[s][w]).average().orElse(0);
+    }
+
+    /** the spread of the seeds relative to the mean, the largest of the windows */
+    static double spread(double[][] windows) {
+        double max = 0;
+        for (int w = 0; w < WINDOWS; ++w) {
+            double m = mean(windows, w);
+            double v = 0;
+            for (int s = 0; s < SEEDS; ++s) {
+                v += (windows[s][w] - m) * (windows[s][w] - m);
+            }
+            max = Math.max(max, Math.sqrt(v / (SEEDS - 1)) / m);
+        }
+        return max;
+    }
+
+    @Test
+    void rainConvergesWithFewerRays() {
+        var rain = late(true, 500);
+        var hits = late(false, 5000);
+        // the hits spread more with ten times the rays
+        assertTrue(spread(rain) < spread(hits), spread(rain) + " " + spread(hits));
+        double sumRain = 0, sumHits = 0;
+        for (int w = 0; w < WINDOWS; ++w) {
+            sumRain += mean(rain, w);
+            sumHits += mean(hits, w);
+        }
+        // and both estimate the same energy
+        assertEquals(1, sumRain / sumHits, .2);
+    }
+}
@@ -0,0 +1,91 @@
+package kis.acoustics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import kis.acoustics.GeoAcoustics.Material;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Materials of the meshes and the cache of the compiled scene.
+ * @author naoki
+ */
+public class SceneLoaderTest {
+    static final String QUAD = "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n";
+
+    @TempDir
+    Path dir;
+
+    PackedScene load(String obj, String materials) throws Exception {
+        var mesh = dir.resolve("room.obj");
+        Files.writeString(mesh, obj);
+        Path mat = null;
+        if (materials != null) {
+            mat = dir.resolve("mat.json");
+            Files.writeString(mat, materials);
+        }
+        return SceneLoader.load(mesh, mat, false);
+    }
+
+    @Test
+    void presetsComeBeforeDefault() throws Exception {
+        var scene = load(QUAD + "usemtl CURTAIN_FLAT\nf 1 2 3\nusemtl stage\nf 1 3 4\n",
+                "{\"default\": \"CARPET_PILE\"}");
+        assertEquals(Material.CURTAIN_FLAT, scene.materials[0]);
+        assertEquals(Material.CARPET_PILE, scene.materials[1]);
+    }
+
+    @Test
+    void unknownNameNeedsDefault() {
+        var ex = assertThrows(IllegalArgumentException.class, () -> load(QUAD + "usemtl stage\nf 1 2 3\n", "{}"));
+        assertTrue(ex.getMessage().contains("stage"), ex.getMessage());
+    }
+
+    @Test
+    void bareUsemtlTellsTheLine() {
+        var ex = assertThrows(IllegalArgumentException.class, () -> load(QUAD + "usemtl\nf 1 2 3\n", null));
+        assertTrue(ex.getMessage().contains("line 5"), ex.getMessage());
+    }
+
+    @Test
+    void binaryStlWithoutMaterials() throws Exception {
+        var buf = ByteBuffer.allocate(84 + 50).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(80);
+        buf.putInt(1);
+        buf.position(84 + 12);
+        for (float f : new float[] {0, 0, 0, 1, 0, 0, 0, 1, 0}) {
+            buf.putFloat(f);
+        }
+        var mesh = dir.resolve("room.stl");
+        Files.write(mesh, buf.array());
+        var scene = SceneLoader.load(mesh, null, false);
+        assertEquals(1, scene.triangleCount);
+        assertEquals(Material.CONCRETE, scene.materials[0]);
+    }
+
+    @Test
+    void cacheIsKeptUntilTheMaterialsChange() throws Exception {
+        var obj = QUAD + "usemtl stage\nf 1 2 3\n";
+        load(obj, "{\"stage\": \"WOOD_FLOOR\"}");
+        var cache = dir.resolve("room.obj.scene");
+        var fingerprint = SceneFile.fingerprint(cache);
+        assertEquals(32, fingerprint.length);
+        assertEquals(Material.WOOD_FLOOR, load(obj, "{\"stage\": \"WOOD_FLOOR\"}").materials[0]);
+        assertArrayEquals(fingerprint, SceneFile.fingerprint(cache));
+        assertEquals(Material.CARPET_PILE, load(obj, "{\"stage\": \"CARPET_PILE\"}").materials[0]);
+    }
+
+    @Test
+    void unwritableCacheIsSkipped() throws Exception {
+        // a directory where the cache would be can't be replaced
+        Files.createDirectories(dir.resolve("room.obj.scene").resolve("x"));
+        var scene = load(QUAD + "f 1 2 3\n", null);
+        assertEquals(1, scene.triangleCount);
+    }
+}
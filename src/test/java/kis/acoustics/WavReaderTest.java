@@ -0,0 +1,54 @@
+package kis.acoustics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * WAV files with chunks other writers put.
+ * @author naoki
+ */
+public class WavReaderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void extensibleStopsAtTheData() throws IOException {
+        var buf = ByteBuffer.allocate(100).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0x46464952).putInt(0).putInt(0x45564157);
+        // WAVE_FORMAT_EXTENSIBLE, 2ch 48kHz 16bit, sub format PCM
+        buf.putInt(0x20746d66).putInt(40);
+        buf.putShort((short) 0xfffe).putShort((short) 2).putInt(48000).putInt(48000 * 4)
+                .putShort((short) 4).putShort((short) 16).putShort((short) 22).putShort((short) 16).putInt(3);
+        buf.put(new byte[] {1, 0, 0, 0, 0, 0, 0x10, 0, (byte) 0x80, 0, 0, (byte) 0xaa, 0, 0x38, (byte) 0x9b, 0x71});
+        buf.putInt(0x61746164).putInt(12);
+        buf.putShort((short) 1).putShort((short) -1).putShort((short) 2).putShort((short) -2)
+                .putShort((short) 3).putShort((short) -3);
+        // a LIST chunk after the data is not audio
+        buf.putInt(0x5453494c).putInt(8).putLong(0x7fff7fff7fff7fffL);
+        buf.putInt(4, buf.position() - 8);
+        var path = dir.resolve("ext.wav");
+        Files.write(path, Arrays.copyOf(buf.array(), buf.position()));
+
+        try (var reader = new WavReader(path)) {
+            assertEquals(2, reader.channels);
+            assertEquals(48000, reader.sampleRate);
+            assertEquals(3, reader.frames);
+            var out = new float[2][2];
+            assertEquals(2, reader.read(out));
+            assertArrayEquals(new float[] {1, 2}, out[0]);
+            assertArrayEquals(new float[] {-1, -2}, out[1]);
+            assertEquals(1, reader.read(out));
+            assertEquals(3, out[0][0]);
+            assertEquals(-3, out[1][0]);
+            assertEquals(0, reader.read(out));
+        }
+    }
+}
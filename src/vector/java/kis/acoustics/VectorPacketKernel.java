@@ -0,0 +1,109 @@
+package kis.acoustics;
+
+import static kis.acoustics.PackedScene.BANDS;
+import static kis.acoustics.PackedScene.STRIDE;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Packet kernels with the Vector API.
+ * A ray is tested against the triangles of a BVH leaf at once, one triangle per lane,
+ * so the triangles are copied into component arrays in BVH order.
+ * @author naoki
+ */
+class VectorPacketKernel implements PacketKernel {
+    // vertex, edge1 and edge2 by component, padded to whole vectors
+    private final double[] v0x, v0y, v0z, e1x, e1y, e1z, e2x, e2y, e2z;
+    // may have fewer lanes than a leaf or the bands, 2 with NEON and 4 with AVX2
+    private final VectorSpecies<Double> species;
+
+    VectorPacketKernel(PackedScene scene) {
+        this(scene, DoubleVector.SPECIES_PREFERRED.vectorBitSize());
+    }
+
+    /** @param bits width of the vectors, to check other machines */
+    VectorPacketKernel(PackedScene scene, int bits) {
+        species = VectorSpecies.of(double.class, VectorShape.forBitSize(bits));
+        int n = scene.triangleCount + species.length();
+        v0x = new double[n]; v0y = new double[n]; v0z = new double[n];
+        e1x = new double[n]; e1y = new double[n]; e1z = new double[n];
+        e2x = new double[n]; e2y = new double[n]; e2z = new double[n];
+        var tri = scene.triangles;
+        for (int i = 0; i < scene.triangleCount; ++i) {
+            int o = i * STRIDE;
+            v0x[i] = tri[o]; v0y[i] = tri[o + 1]; v0z[i] = tri[o + 2];
+            e1x[i] = tri[o + 3]; e1y[i] = tri[o + 4]; e1z[i] = tri[o + 5];
+            e2x[i] = tri[o + 6]; e2y[i] = tri[o + 7]; e2z[i] = tri[o + 8];
+        }
+    }
+
+    @Override
+    public int leaf(double ox, double oy, double oz, double dx, double dy, double dz,
+            int offset, int count, double best, double[] t) {
+        int hit = -1;
+        // the leaf in whole vectors, the last one masked
+        for (int k = 0; k < count; k += species.length()) {
+            int i = offset + k;
+            var lanes = species.indexInRange(k, count);
+            var ax = DoubleVector.fromArray(species, e1x, i);
+            var ay = DoubleVector.fromArray(species, e1y, i);
+            var az = DoubleVector.fromArray(species, e1z, i);
+            var bx = DoubleVector.fromArray(species, e2x, i);
+            var by = DoubleVector.fromArray(species, e2y, i);
+            var bz = DoubleVector.fromArray(species, e2z, i);
+            // Moller-Trumbore, same operations as the scalar code
+            var px = bz.mul(dy).sub(by.mul(dz));
+            var py = bx.mul(dz).sub(bz.mul(dx));
+            var pz = by.mul(dx).sub(bx.mul(dy));
+            var det = ax.mul(px).add(ay.mul(py)).add(az.mul(pz));
+            VectorMask<Double> valid = lanes.and(det.compare(VectorOperators.GT, 0));
+            if (!valid.anyTrue()) {
+                continue;
+            }
+            var sx = DoubleVector.broadcast(species, ox).sub(DoubleVector.fromArray(species, v0x, i));
+            var sy = DoubleVector.broadcast(species, oy).sub(DoubleVector.fromArray(species, v0y, i));
+            var sz = DoubleVector.broadcast(species, oz).sub(DoubleVector.fromArray(species, v0z, i));
+            var u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz));
+            valid = valid.and(u.compare(VectorOperators.GE, 0)).and(u.compare(VectorOperators.LE, det));
+            var qx = sy.mul(az).sub(sz.mul(ay));
+            var qy = sz.mul(ax).sub(sx.mul(az));
+            var qz = sx.mul(ay).sub(sy.mul(ax));
+            var v = qx.mul(dx).add(qy.mul(dy)).add(qz.mul(dz));
+            valid = valid.and(v.compare(VectorOperators.GE, 0)).and(u.add(v).compare(VectorOperators.LE, det));
+            if (!valid.anyTrue()) {
+                continue;
+            }
+            var d = bx.mul(qx).add(by.mul(qy)).add(bz.mul(qz)).div(det);
+            valid = valid.and(d.compare(VectorOperators.GT, 0)).and(d.compare(VectorOperators.LT, best));
+            if (!valid.anyTrue()) {
+                continue;
+            }
+            d = d.blend(Double.POSITIVE_INFINITY, valid.not());
+            best = d.reduceLanes(VectorOperators.MIN);
+            // the first lane like the scalar loop, later vectors only take nearer hits
+            hit = i + d.compare(VectorOperators.EQ, best).firstTrue();
+        }
+        if (hit >= 0) {
+            t[0] = best;
+        }
+        return hit;
+    }
+
+    @Override
+    public double absorb(double[] energy, int offset, double[] absorption, int absOffset) {
+        double max = 0;
+        // the bands in whole vectors, the last one masked
+        for (int b = 0; b < BANDS; b += species.length()) {
+            var m = species.indexInRange(b, BANDS);
+            var e = DoubleVector.fromArray(species, energy, offset + b, m);
+            var a = DoubleVector.fromArray(species, absorption, absOffset + b, m);
+            e = e.mul(DoubleVector.broadcast(species, 1).sub(a));
+            e.intoArray(energy, offset + b, m);
+            max = Math.max(max, e.reduceLanes(VectorOperators.MAX, m));
+        }
+        return max;
+    }
+}